@@ -0,0 +1,62 @@
+package com.danikula.videocache;
+
+/**
+ * Single range of 'Range: bytes=...' request header (RFC 7233): {@code first-last}, {@code first-} or
+ * suffix {@code -length}. Actual offsets are resolved against length of source.
+ *
+ * 请求头Range中的一个区间，可以是first-last、first-或者表示最后若干字节的-length
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class ByteRange {
+
+    //第一个字节的位置，后缀区间为-1
+    final long first;
+    //最后一个字节的位置（包含），后缀区间时是后缀的长度，没有时为-1
+    final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Returns {@code true} if range requests last bytes of source: {@code -length}.
+     */
+    boolean isSuffix() {
+        return first < 0;
+    }
+
+    /**
+     * Returns {@code true} if range has end that doesn't depend on length of source: {@code first-last}
+     * or suffix range.
+     */
+    boolean isBounded() {
+        return last >= 0;
+    }
+
+    /**
+     * Returns {@code true} if source of given length contains at least one byte of range.
+     */
+    boolean isSatisfiable(long length) {
+        return isSuffix() ? last > 0 && length > 0 : first < length;
+    }
+
+    /**
+     * Returns offset of first byte of range in source of given length.
+     */
+    long start(long length) {
+        return isSuffix() ? Math.max(0, length - last) : first;
+    }
+
+    /**
+     * Returns offset after last byte of range in source of given length.
+     */
+    long end(long length) {
+        return isSuffix() || last < 0 ? length : Math.min(last + 1, length);
+    }
+
+    @Override
+    public String toString() {
+        return isSuffix() ? "-" + last : first + "-" + (last < 0 ? "" : String.valueOf(last));
+    }
+}
@@ -0,0 +1,179 @@
+package com.danikula.videocache;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.danikula.videocache.file.ManagedDiskUsage;
+import com.danikula.videocache.file.MappedFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+import static com.danikula.videocache.ProxyCacheUtils.LOG_TAG;
+
+/**
+ * In-memory index of completely cached sources of {@link HttpProxyCacheServer}.
+ * <p/>
+ * Completed cache file is found by single file check on first request of url, its mime type is read from
+ * {@link com.danikula.videocache.sourcestorage.SourceInfoStorage} only once and is kept in memory, so replays of
+ * cached url are served by {@link CompletedFileProxy} without creating source, file cache and proxy cache.
+ * Source of every found entry is revalidated once in background, entry and file of changed source are deleted, so
+ * next request downloads source again. Entries of files deleted while trimming cache are dropped by eviction callback
+ * of {@link com.danikula.videocache.file.ManagedDiskUsage}, so index never keeps more entries than cache has files.
+ * <p/>
+ * If {@link Config#mapCompletedFiles} is set, every entry holds reference to memory mapping of its file shared by all
+ * clients of url (and by {@link com.danikula.videocache.file.FileCache} of the same file). Reference is released when
+ * entry is removed: file is evicted from cache, source is changed or server is shut down.
+ *
+ * 已经完整缓存的url的内存索引：第一次请求时检查文件是否存在，mime只从存储中读取一次，
+ * 之后的请求直接发送文件，不创建数据源和代理缓存；每个条目在后台向源确认一次是否变化
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class CompletedCacheIndex implements ManagedDiskUsage.EvictionListener {
+
+    private final Config config;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    CompletedCacheIndex(Config config) {
+        this.config = checkNotNull(config);
+        config.diskUsage.registerEvictionListener(this);
+    }
+
+    /**
+     * Returns entry for completely cached url or {@code null} if url isn't cached completely.
+     */
+    Entry find(String url) {
+        Entry entry = entries.get(url);
+        if (entry != null) {
+            return entry;
+        }
+        File file = config.generateCacheFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+        Entry newEntry;
+        try {
+            MappedFile mappedFile = config.mapCompletedFiles ? MappedFile.acquire(file) : null;
+            newEntry = new Entry(url, file, getMime(url), mappedFile);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error mapping completed cache file " + file, e);
+            return null;
+        }
+        Entry existedEntry = entries.putIfAbsent(url, newEntry);
+        if (existedEntry != null) {
+            newEntry.release();
+            return existedEntry;
+        }
+        revalidateInBackground(newEntry);
+        return newEntry;
+    }
+
+    /**
+     * Opens file of entry for reading.
+     *
+     * @return opened file or {@code null} if file doesn't exist any more (e.g. it is deleted while trimming cache),
+     * entry is removed from index in this case.
+     */
+    RandomAccessFile open(Entry entry) {
+        try {
+            return new RandomAccessFile(entry.file, "r");
+        } catch (FileNotFoundException e) {
+            remove(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Removes entry of file deleted by {@link com.danikula.videocache.file.DiskUsage}.
+     */
+    @Override
+    public void onEvicted(File file) {
+        for (Entry entry : entries.values()) {
+            if (entry.file.equals(file)) {
+                remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries and releases their mappings, index can't be used after releasing.
+     */
+    void release() {
+        config.diskUsage.unregisterEvictionListener(this);
+        for (Entry entry : entries.values()) {
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.url, entry)) {
+            entry.release();
+        }
+    }
+
+    //与HttpUrlSource一致：存储的mime为空时根据url猜测
+    private String getMime(String url) {
+        SourceInfo sourceInfo = config.sourceInfoStorage.get(url);
+        boolean mimeKnown = sourceInfo != null && !TextUtils.isEmpty(sourceInfo.mime);
+        return mimeKnown ? sourceInfo.mime : ProxyCacheUtils.getSupposablyMime(url);
+    }
+
+    private void revalidateInBackground(final Entry entry) {
+        config.downloadScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                HttpUrlSource source = new HttpUrlSource(entry.url, config.sourceInfoStorage, config.originTransport);
+                try {
+                    if (source.revalidate()) {
+                        onSourceChanged(entry);
+                    }
+                } catch (ProxyCacheException e) {
+                    Log.e(LOG_TAG, "Error revalidating source " + entry.url, e);
+                }
+            }
+        });
+    }
+
+    //源已经变化：删除条目和旧的缓存文件，正在发送的客户端不受影响，下次请求时重新下载
+    private void onSourceChanged(Entry entry) {
+        Log.w(LOG_TAG, "Source " + entry.url + " is changed, cached file " + entry.file + " is deleted");
+        remove(entry);
+        try {
+            config.diskUsage.delete(entry.file);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error deleting stale cache file " + entry.file, e);
+        }
+    }
+
+    /**
+     * Completely cached source: cache file, mime type, encoder of response headers and optional memory mapping
+     * of file shared by all responses.
+     */
+    static final class Entry {
+
+        final String url;
+        final File file;
+        final String mime;
+        final ResponseHeaders responseHeaders = new ResponseHeaders();
+        //没有打开内存映射选项时为null
+        final MappedFile mappedFile;
+
+        Entry(String url, File file, String mime, MappedFile mappedFile) {
+            this.url = url;
+            this.file = file;
+            this.mime = mime;
+            this.mappedFile = mappedFile;
+        }
+
+        private void release() {
+            if (mappedFile != null) {
+                mappedFile.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.danikula.videocache;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Minimal responder for completely cached sources found by {@link CompletedCacheIndex}.
+ * <p/>
+ * Response is built only from cache file and mime type kept in index: source, source info storage and
+ * {@link ProxyCache} are not used at all. Body is sent by {@link FileChannel#transferTo}, so replay of cached video
+ * costs about as much as sending plain file. Full response and single range (including suffix one) are supported,
+ * requests with several ranges must be served by {@link HttpProxyCache}. If entry has memory mapping of file, body is
+ * written right from mapped memory shared by all clients of url.
+ *
+ * 完整缓存文件的快速响应：只使用缓存文件和索引中的mime，通过transferTo直接发送文件
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class CompletedFileProxy {
+
+    /**
+     * Returns {@code true} if request can be served by this proxy: it asks whole source or single range.
+     */
+    boolean canProcess(GetRequest request) {
+        return request.ranges.size() <= 1;
+    }
+
+    /**
+     * Writes response for request to socket.
+     *
+     * @param file opened file of entry, it isn't closed by this method.
+     * @return {@code true} if connection can be reused for next request: client asked keep-alive and
+     * exactly {@code Content-Length} bytes are written.
+     */
+    boolean processRequest(GetRequest request, Socket socket, CompletedCacheIndex.Entry entry, RandomAccessFile file)
+            throws IOException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+        long offset = 0;
+        long contentLength = length;
+        if (request.partial) {
+            ByteRange range = request.ranges.get(0);
+            if (!range.isSatisfiable(length)) {
+                entry.responseHeaders.writeRangeNotSatisfiable(out, length, request.keepAlive);
+                out.flush();
+                return request.keepAlive;
+            }
+            offset = range.start(length);
+            contentLength = range.end(length) - offset;
+        }
+        entry.responseHeaders.write(out, request.partial, offset, contentLength, length, entry.mime, request.keepAlive);
+        out.flush(); // headers
+        long written = entry.mappedFile != null ?
+                entry.mappedFile.transferTo(offset, contentLength, getTarget(socket)) : transfer(channel, offset, contentLength, socket);
+        return request.keepAlive && written == contentLength;
+    }
+
+    private long transfer(FileChannel channel, long offset, long count, Socket socket) throws IOException {
+        WritableByteChannel target = getTarget(socket);
+        long transferred = 0;
+        while (transferred < count) {
+            long bytes = channel.transferTo(offset + transferred, count - transferred, target);
+            if (bytes <= 0) {
+                break; // file is truncated
+            }
+            transferred += bytes;
+        }
+        return transferred;
+    }
+
+    private WritableByteChannel getTarget(Socket socket) throws IOException {
+        SocketChannel socketChannel = socket.getChannel();
+        return socketChannel != null ? socketChannel : Channels.newChannel(socket.getOutputStream());
+    }
+}
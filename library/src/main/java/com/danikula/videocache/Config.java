@@ -1,8 +1,11 @@
 package com.danikula.videocache;
 
 import com.danikula.videocache.file.DiskUsage;
+import com.danikula.videocache.file.DiskUsages;
 import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.ManagedDiskUsage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+import com.danikula.videocache.transport.OriginTransport;
 
 import java.io.File;
 
@@ -16,14 +19,31 @@ class Config {
 
     public final File cacheRoot;
     public final FileNameGenerator fileNameGenerator;
-    public final DiskUsage diskUsage;
+    //自定义的DiskUsage没有实现ManagedDiskUsage时被包装，不支持租用
+    public final ManagedDiskUsage diskUsage;
     public final SourceInfoStorage sourceInfoStorage;
+    public final DownloadScheduler downloadScheduler;
+    public final OriginTransport originTransport;
+    public final int segmentedConnections;
+    public final int maxSourceRetries;
+    public final ReadAheadPolicy readAheadPolicy;
+    public final long lingerMillis;
+    public final boolean mapCompletedFiles;
 
-    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage) {
+    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage,
+           DownloadScheduler downloadScheduler, OriginTransport originTransport, int segmentedConnections,
+           int maxSourceRetries, ReadAheadPolicy readAheadPolicy, long lingerMillis, boolean mapCompletedFiles) {
         this.cacheRoot = cacheRoot;
         this.fileNameGenerator = fileNameGenerator;
-        this.diskUsage = diskUsage;
+        this.diskUsage = DiskUsages.asManaged(diskUsage);
         this.sourceInfoStorage = sourceInfoStorage;
+        this.downloadScheduler = downloadScheduler;
+        this.originTransport = originTransport;
+        this.segmentedConnections = segmentedConnections;
+        this.maxSourceRetries = maxSourceRetries;
+        this.readAheadPolicy = readAheadPolicy;
+        this.lingerMillis = lingerMillis;
+        this.mapCompletedFiles = mapCompletedFiles;
     }
 
     File generateCacheFile(String url) {
@@ -0,0 +1,89 @@
+package com.danikula.videocache;
+
+/**
+ * Snapshot of downloading progress of single source, see {@link HttpProxyCacheServer#getDownloadProgress(String)}.
+ * Useful for tuning {@link ReadAheadPolicy}.
+ *
+ * 单个数据源下载进度的快照
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public final class DownloadProgress {
+
+    private final long cachedBytes;
+    private final long sourceLength;
+    private final long furthestReadOffset;
+    private final long readRate;
+    private final boolean paused;
+    private final boolean completed;
+
+    DownloadProgress(long cachedBytes, long sourceLength, long furthestReadOffset, long readRate, boolean paused,
+                     boolean completed) {
+        this.cachedBytes = cachedBytes;
+        this.sourceLength = sourceLength;
+        this.furthestReadOffset = furthestReadOffset;
+        this.readRate = readRate;
+        this.paused = paused;
+        this.completed = completed;
+    }
+
+    /**
+     * Returns count of bytes cached contiguously from start of source.
+     */
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Returns length of source or {@code -1} if it is unknown yet.
+     */
+    public long getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * Returns furthest offset clients have requested data up to.
+     */
+    public long getFurthestReadOffset() {
+        return furthestReadOffset;
+    }
+
+    /**
+     * Returns count of cached bytes clients haven't read yet, 0 if clients read ahead of cache.
+     */
+    public long getBytesAhead() {
+        return Math.max(0, cachedBytes - furthestReadOffset);
+    }
+
+    /**
+     * Returns estimated count of bytes clients read per second, 0 if it is unknown yet.
+     */
+    public long getReadRate() {
+        return readRate;
+    }
+
+    /**
+     * Returns {@code true} if downloading is paused because cache is far enough ahead of clients.
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Returns {@code true} if source is cached completely.
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadProgress{" +
+                "cachedBytes=" + cachedBytes +
+                ", sourceLength=" + sourceLength +
+                ", furthestReadOffset=" + furthestReadOffset +
+                ", readRate=" + readRate +
+                ", paused=" + paused +
+                ", completed=" + completed +
+                '}';
+    }
+}
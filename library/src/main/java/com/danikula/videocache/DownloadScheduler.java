@@ -0,0 +1,116 @@
+package com.danikula.videocache;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+
+/**
+ * Bounded pool that runs source readers of {@link ProxyCache} as tasks.
+ * <p/>
+ * At most {@link #getMaxConcurrentDownloads()} sources are downloaded at the same time, other readers wait in queue.
+ * Threads are reused between readers and die after being idle for a while, so rapid seeks and scrolling
+ * galleries don't create a new thread for every reading restart.
+ * <p/>
+ * Single scheduler can be shared by several proxy servers, see
+ * {@link HttpProxyCacheServer.Builder#downloadScheduler(DownloadScheduler)}.
+ *
+ * 数据源下载的调度器，用有界线程池执行下载任务，限制同时下载的数量，并提供队列深度等统计信息
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public class DownloadScheduler {
+
+    /**
+     * Max count of sources downloaded at the same time by default.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 8;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static DownloadScheduler defaultScheduler;
+
+    private final int maxConcurrentDownloads;
+    private final ThreadPoolExecutor executor;
+
+    public DownloadScheduler() {
+        this(DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    public DownloadScheduler(int maxConcurrentDownloads) {
+        checkArgument(maxConcurrentDownloads > 0, "Max concurrent downloads count must be positive number!");
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+        this.executor = new ThreadPoolExecutor(maxConcurrentDownloads, maxConcurrentDownloads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new SourceReaderThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized DownloadScheduler getDefault() {
+        if (defaultScheduler == null) {
+            defaultScheduler = new DownloadScheduler();
+        }
+        return defaultScheduler;
+    }
+
+    Future<?> submit(Runnable sourceReader) {
+        return executor.submit(sourceReader);
+    }
+
+    /**
+     * Returns max count of sources downloaded at the same time.
+     *
+     * @return max count of concurrent downloads.
+     */
+    public int getMaxConcurrentDownloads() {
+        return maxConcurrentDownloads;
+    }
+
+    /**
+     * Returns approximate count of sources being downloaded right now.
+     *
+     * @return count of active downloads.
+     */
+    public int getActiveDownloads() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns count of source readers waiting for free download slot (queue depth).
+     *
+     * @return count of queued downloads.
+     */
+    public int getQueuedDownloads() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns approximate count of source readers finished since scheduler creation (completed, failed or stopped).
+     *
+     * @return count of finished downloads.
+     */
+    public long getFinishedDownloads() {
+        return executor.getCompletedTaskCount();
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadScheduler{" +
+                "max=" + maxConcurrentDownloads +
+                ", active=" + getActiveDownloads() +
+                ", queued=" + getQueuedDownloads() +
+                ", finished=" + getFinishedDownloads() +
+                '}';
+    }
+
+    private static final class SourceReaderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadsCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "Source reader #" + threadsCount.incrementAndGet());
+        }
+    }
+}
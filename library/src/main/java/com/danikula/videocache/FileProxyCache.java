@@ -1,13 +1,14 @@
 package com.danikula.videocache;
 
-import android.text.TextUtils;
-
 import com.danikula.videocache.file.FileCache;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
 
@@ -27,10 +28,15 @@ class FileProxyCache extends ProxyCache {
 
     private final FileSource source;
     private final FileCache cache;
+    private final ResponseHeaders responseHeaders = new ResponseHeaders();
     private CacheListener listener;
 
     public FileProxyCache(FileSource source, FileCache cache) {
-        super(source, cache);
+        this(source, cache, DownloadScheduler.getDefault());
+    }
+
+    public FileProxyCache(FileSource source, FileCache cache, DownloadScheduler downloadScheduler) {
+        super(source, cache, downloadScheduler);
         this.cache = cache;
         this.source = source;
     }
@@ -40,22 +46,34 @@ class FileProxyCache extends ProxyCache {
         this.listener = cacheListener;
     }
 
-    //处理请求
-    public void processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
+    /**
+     * Writes response for request to socket.
+     *
+     * @return {@code true} if connection can be reused for next request: client asked keep-alive and
+     * exactly {@code Content-Length} bytes are written.
+     */
+    public boolean processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
         //获得socket的输出流
         OutputStream out = new BufferedOutputStream(socket.getOutputStream());
-        //获得响应头
-        String responseHeaders = newResponseHeaders(request);
+        //根据缓存是否完成判断响应长度是缓存的已缓存的内容还是源数据的长度
+        long length = cache.isCompleted() ? cache.available() : source.length();
+        boolean lengthKnown = length >= 0;
+        //根据request是不是partial判断content长度是长度-偏移量还是我们能获得的长度
+        long contentLength = request.partial ? length - request.rangeOffset : length;
+        boolean keepAlive = request.keepAlive && lengthKnown;
         //将响应头先写到输出流中
-        out.write(responseHeaders.getBytes("UTF-8"));
+        responseHeaders.write(out, request.partial, request.rangeOffset, contentLength, length, source.getMime(), keepAlive);
 
         long offset = request.rangeOffset;
         //必须使用缓存数据
         //if (isUseCache(request)) {
-            responseWithCache(out, offset);
+            long written = cache.isCompleted() ?
+                    responseWithCompletedCache(out, socket, offset, contentLength) : responseWithCache(out, offset, contentLength);
        /* } else {
             responseWithoutCache(out, offset);
         }*/
+        //响应体长度和Content-Length一致时连接才能复用
+        return keepAlive && written == contentLength;
     }
 
     /**
@@ -67,38 +85,24 @@ class FileProxyCache extends ProxyCache {
      * @throws ProxyCacheException
      */
     private boolean isUseCache(GetRequest request) throws ProxyCacheException {
-        int sourceLength = source.length();
+        long sourceLength = source.length();
         boolean sourceLengthKnown = sourceLength > 0;
-        int cacheAvailable = cache.available();
+        long cacheAvailable = cache.available();
         // do not use cache for partial requests which too far from available cache. It seems user seek video.
         return !sourceLengthKnown || !request.partial || request.rangeOffset <= cacheAvailable + sourceLength * NO_CACHE_BARRIER;
     }
 
     /**
-     * 根据request来制作响应头
-     * @param request
-     * @return
-     * @throws IOException
-     * @throws ProxyCacheException
+     * 缓存已经完成时的快速通道：文件内容通过{@link FileCache#transferTo}直接从文件channel发送到socket channel，
+     * 不经过{@link #read(byte[], long, int)}，也不需要每块数据都获取缓存的锁
      */
-    private String newResponseHeaders(GetRequest request) throws IOException, ProxyCacheException {
-        //获取source的资源类型,测试时强制为flv的格式
-        String mime = source.getMime();
-        boolean mimeKnown = !TextUtils.isEmpty(mime);
-        //根据缓存是否完成判断响应长度是缓存的已缓存的内容还是源数据的长度
-        int length = cache.isCompleted() ? cache.available() : source.length();
-        boolean lengthKnown = length >= 0;
-        //根据request是不是partial判断content长度是长度-偏移量还是我们能获得的长度
-        long contentLength = request.partial ? length - request.rangeOffset : length;
-        boolean addRange = lengthKnown && request.partial;
-        return new StringBuilder()
-                .append(request.partial ? "HTTP/1.1 206 PARTIAL CONTENT\n" : "HTTP/1.1 200 OK\n")
-                .append("Accept-Ranges: bytes\n")
-                .append(lengthKnown ? String.format("Content-Length: %d\n", contentLength) : "")
-                .append(addRange ? String.format("Content-Range: bytes %d-%d/%d\n", request.rangeOffset, length - 1, length) : "")
-                .append(mimeKnown ? String.format("Content-Type: %s\n", mime) : "")
-                .append("\n") // headers end
-                .toString();
+    private long responseWithCompletedCache(OutputStream out, Socket socket, long offset, long length) throws ProxyCacheException, IOException {
+        out.flush(); // headers
+        SocketChannel socketChannel = socket.getChannel();
+        WritableByteChannel target = socketChannel != null ? socketChannel : Channels.newChannel(socket.getOutputStream());
+        long written = cache.transferTo(offset, length, target);
+        onCacheCompleted();
+        return written;
     }
 
     /**
@@ -108,15 +112,26 @@ class FileProxyCache extends ProxyCache {
      * @throws ProxyCacheException
      * @throws IOException
      */
-    private void responseWithCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
+    private long responseWithCache(OutputStream out, long offset, long length) throws ProxyCacheException, IOException {
         byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        long written = 0;
         int readBytes;
-        //从缓存中读数据到buffer中，再从buffer中写数据到输出流中
+        //从缓存中读数据到buffer中，再从buffer中写数据到输出流中，长度已知时不会写超过Content-Length的数据
         while ((readBytes = read(buffer, offset, buffer.length)) != -1) {
-            out.write(buffer, 0, readBytes);
-            offset += readBytes;
+            int writeBytes = bytesToWrite(readBytes, length, written);
+            out.write(buffer, 0, writeBytes);
+            offset += writeBytes;
+            written += writeBytes;
+            if (length >= 0 && written >= length) {
+                break;
+            }
         }
         out.flush();
+        return written;
+    }
+
+    private int bytesToWrite(int readBytes, long length, long written) {
+        return length < 0 ? readBytes : (int) Math.min(readBytes, length - written);
     }
 
     /**
@@ -131,7 +146,7 @@ class FileProxyCache extends ProxyCache {
         HttpUrlSource newSourceNoCache = new HttpUrlSource(this.source);
         try {
             //打开数据源，从中读取数据到buffer中，再从buffer中写到输出流中
-            newSourceNoCache.open((int) offset);
+            newSourceNoCache.open(offset);
             byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
             int readBytes;
             while ((readBytes = newSourceNoCache.read(buffer)) != -1) {
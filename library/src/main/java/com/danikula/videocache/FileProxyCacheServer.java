@@ -11,14 +11,17 @@ import com.danikula.videocache.file.TotalCountLruDiskUsage;
 import com.danikula.videocache.file.TotalSizeLruDiskUsage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.transport.OriginTransport;
+import com.danikula.videocache.transport.UrlConnectionTransport;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Map;
@@ -27,14 +30,16 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeoutException;
 
 import static com.danikula.videocache.Preconditions.checkAllNotNull;
 import static com.danikula.videocache.Preconditions.checkNotNull;
 import static com.danikula.videocache.ProxyCacheUtils.LOG_TAG;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * 文件代理缓存的服务器，主要用来提供缓存和播放的服务，客户端指定一个本地的flv文件却不直接播放
@@ -62,11 +67,13 @@ public class FileProxyCacheServer {
     private static final String PROXY_HOST = "127.0.0.1";
     private static final String PING_REQUEST = "ping";
     private static final String PING_RESPONSE = "ping ok";
+    private static final int MAX_ACTIVE_REQUESTS = 32;
 
     private final Object clientsLock = new Object();
-    private final ExecutorService socketProcessor = Executors.newFixedThreadPool(8);
+    private final ExecutorService socketProcessor = newSocketProcessor();
     private final Map<String, FileProxyCacheServerClients> clientsMap = new ConcurrentHashMap<>();
-    private final ServerSocket serverSocket;
+    private final ServerSocketChannel serverChannel;
+    private final ServerEventLoop eventLoop;
     private final int port;
     private final Thread waitConnectionThread;
     private final Config config;
@@ -81,8 +88,11 @@ public class FileProxyCacheServer {
         try {
             //新建一个本地的内部服务器
             InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
-            this.serverSocket = new ServerSocket(0, 8, inetAddress);
-            this.port = serverSocket.getLocalPort();
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.socket().bind(new InetSocketAddress(inetAddress, 0));
+            this.port = serverChannel.socket().getLocalPort();
+            //所有连接由一个selector线程管理，只有读完请求的连接才占用工作线程
+            this.eventLoop = new ServerEventLoop(serverChannel, socketProcessor, new SocketRequestProcessor());
             //可以将countdownlatch看做线程安全的计数器，保证只有一个线程操作这个计数器，任何调用这个对象上的await()方法都会阻塞，
             //直到这个计数器的计数值被其他的线程减为0为止
             CountDownLatch startSignal = new CountDownLatch(1);
@@ -99,6 +109,13 @@ public class FileProxyCacheServer {
         }
     }
 
+    private static ExecutorService newSocketProcessor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_ACTIVE_REQUESTS, MAX_ACTIVE_REQUESTS,
+                60, SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     //确保服务器在工作,去ping 服务器，查看是否Ping的通过,如果未通过,睡眠300ms，再次尝试。第二次尝试的时候失败睡眠时间翻倍
     //三次尝试如果都失败说明服务器不工作则关闭代理服务器
     private void makeSureServerWorks() {
@@ -218,14 +235,16 @@ public class FileProxyCacheServer {
 
         config.sourceInfoStorage.release();
 
+        eventLoop.shutdown();
         waitConnectionThread.interrupt();
         try {
-            if (!serverSocket.isClosed()) {
-                serverSocket.close();
+            if (serverChannel.isOpen()) {
+                serverChannel.close();
             }
         } catch (IOException e) {
             onError(new ProxyCacheException("Error shutting down proxy server", e));
         }
+        socketProcessor.shutdown();
     }
 
     //关闭所有正在通信的客户端
@@ -238,40 +257,26 @@ public class FileProxyCacheServer {
         }
     }
 
-    /**
-     * 等待客户端建立连接请求
-     */
-    private void waitForRequest() {
-        try {
-            while (!Thread.currentThread().isInterrupted()) {
-                Socket socket = serverSocket.accept();
-                Log.d(LOG_TAG, "Accept new socket " + socket);
-                socketProcessor.submit(new SocketProcessorRunnable(socket));
-            }
-        } catch (IOException e) {
-            onError(new ProxyCacheException("Error during waiting connection", e));
-        }
-    }
-
     /**
      * 处理socket，如果是ping请求，返回ping响应
      * 如果不是ping请求，由clients process Request
+     * @param request
      * @param socket
+     * @return {@code true} if socket is kept alive for next request, {@code false} if it is released
      */
-    private void processSocket(Socket socket) {
+    private boolean processSocket(GetRequest request, Socket socket) {
+        boolean keepAlive = false;
         try {
-            //获取请求数据包
-            GetRequest request = GetRequest.read(socket.getInputStream());
             Log.i(LOG_TAG, "Request to cache proxy:" + request);
-            //请求的数据包编码
-            String url = ProxyCacheUtils.decode(request.uri);
+            //请求的目标在解析时已经url解码
+            String url = request.url;
             if (PING_REQUEST.equals(url)) {
                 //如果是ping请求，返回ping的响应
                 responseToPing(socket);
             } else {
                 //实例化一个cilents,由clients来处理请求
                 FileProxyCacheServerClients clients = getClients(url);
-                clients.processRequest(request, socket);
+                keepAlive = clients.processRequest(request, socket);
             }
         } catch (SocketException e) {
             // There is no way to determine that client closed connection http://stackoverflow.com/a/10241044/999458
@@ -280,14 +285,17 @@ public class FileProxyCacheServer {
         } catch (ProxyCacheException | IOException e) {
             onError(new ProxyCacheException("Error processing request", e));
         } finally {
-            releaseSocket(socket);
+            if (!keepAlive) {
+                releaseSocket(socket);
+            }
             Log.d(LOG_TAG, "Opened connections: " + getClientsCount());
         }
+        return keepAlive;
     }
 
     private void responseToPing(Socket socket) throws IOException {
         OutputStream out = socket.getOutputStream();
-        out.write("HTTP/1.1 200 OK\n\n".getBytes());
+        out.write("HTTP/1.1 200 OK\nConnection: close\n\n".getBytes());
         out.write(PING_RESPONSE.getBytes());
     }
 
@@ -370,23 +378,17 @@ public class FileProxyCacheServer {
         @Override
         public void run() {
             startSignal.countDown();
-            waitForRequest();
+            eventLoop.run();
         }
     }
     /**
-     * 处理socket的线程
-     * */
-    private final class SocketProcessorRunnable implements Runnable {
-
-        private final Socket socket;
-
-        public SocketProcessorRunnable(Socket socket) {
-            this.socket = socket;
-        }
+     * 处理selector线程读好的请求，在工作线程中执行
+     */
+    private final class SocketRequestProcessor implements ServerEventLoop.RequestProcessor {
 
         @Override
-        public void run() {
-            processSocket(socket);
+        public boolean processRequest(GetRequest request, Socket socket) {
+            return processSocket(request, socket);
         }
     }
 
@@ -416,12 +418,18 @@ public class FileProxyCacheServer {
         private FileNameGenerator fileNameGenerator;
         private DiskUsage diskUsage;
         private SourceInfoStorage sourceInfoStorage;
+        private DownloadScheduler downloadScheduler;
+        private OriginTransport originTransport;
+        private int segmentedConnections = 1;
+        private int maxSourceRetries = ProxyCache.DEFAULT_MAX_SOURCE_RETRIES;
 
         public Builder(Context context) {
             this.sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context);
             this.cacheRoot = StorageUtils.getIndividualCacheDirectory(context);
             this.diskUsage = new TotalSizeLruDiskUsage(DEFAULT_MAX_SIZE);
             this.fileNameGenerator = new Md5FileNameGenerator();
+            this.downloadScheduler = DownloadScheduler.getDefault();
+            this.originTransport = new UrlConnectionTransport();
         }
 
         /**
@@ -481,6 +489,35 @@ public class FileProxyCacheServer {
             return this;
         }
 
+        /**
+         * Sets max count of sources downloaded at the same time, other downloads wait in queue.
+         * Default value is {@link DownloadScheduler#DEFAULT_MAX_CONCURRENT_DOWNLOADS}.
+         * <p/>
+         * Note this method overrides result of calling {@link #downloadScheduler(DownloadScheduler)}
+         *
+         * @param count max count of concurrent downloads.
+         * @return a builder.
+         */
+        public Builder maxConcurrentDownloads(int count) {
+            this.downloadScheduler = new DownloadScheduler(count);
+            return this;
+        }
+
+        /**
+         * Sets scheduler that runs downloads of sources. Single scheduler can be shared by several servers
+         * to limit total count of concurrent downloads, it also provides download queue metrics.
+         * By default all servers share single scheduler.
+         * <p/>
+         * Note this method overrides result of calling {@link #maxConcurrentDownloads(int)}
+         *
+         * @param downloadScheduler a download scheduler, can't be null.
+         * @return a builder.
+         */
+        public Builder downloadScheduler(DownloadScheduler downloadScheduler) {
+            this.downloadScheduler = checkNotNull(downloadScheduler);
+            return this;
+        }
+
         /**
          * Builds new instance of {@link HttpProxyCacheServer}.
          *
@@ -492,7 +529,8 @@ public class FileProxyCacheServer {
         }
 
         private Config buildConfig() {
-            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage);
+            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, downloadScheduler, originTransport, segmentedConnections,
+                    maxSourceRetries, ReadAheadPolicy.unlimited(), 0, false);
         }
 
     }
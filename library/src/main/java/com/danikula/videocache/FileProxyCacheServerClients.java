@@ -37,11 +37,11 @@ final class FileProxyCacheServerClients {
         this.uiCacheListener = new UiListenerHandler(url, listeners);
     }
 
-    public void processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
+    public boolean processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
         startProcessRequest();
         try {
             clientsCount.incrementAndGet();
-            proxyCache.processRequest(request, socket);
+            return proxyCache.processRequest(request, socket);
         } finally {
             finishProcessRequest();
         }
@@ -54,8 +54,7 @@ final class FileProxyCacheServerClients {
     //客户端清零后，关闭代理缓存
     private synchronized void finishProcessRequest() {
         if (clientsCount.decrementAndGet() <= 0) {
-            proxyCache.shutdown();
-            proxyCache = null;
+            shutdownProxyCache();
         }
     }
 
@@ -67,12 +66,11 @@ final class FileProxyCacheServerClients {
         listeners.remove(cacheListener);
     }
 
-    public void shutdown() {
+    public synchronized void shutdown() {
         listeners.clear();
         if (proxyCache != null) {
             proxyCache.registerCacheListener(null);
-            proxyCache.shutdown();
-            proxyCache = null;
+            shutdownProxyCache();
         }
         clientsCount.set(0);
     }
@@ -87,15 +85,30 @@ final class FileProxyCacheServerClients {
      * @throws ProxyCacheException
      */
     private FileProxyCache newFileProxyCache() throws ProxyCacheException {
-        //创建httpurlsource,作为数据源，将url和source存储的位置传进去
-        FileSource source = new FileSource(url, config.sourceInfoStorage);
-        //新建文件缓存
-        FileCache cache = new FileCache(config.generateCacheFile(url), config.diskUsage);
-        //新建代理缓存，将远程资源信息和缓存信息作为参数
-        FileProxyCache fileProxyCache = new FileProxyCache(source, cache);
-        //为代理注册缓存监听器，当监听器变化时会回调
-        fileProxyCache.registerCacheListener(uiCacheListener);
-        return fileProxyCache;
+        File file = config.generateCacheFile(url);
+        //先租用缓存文件，代理使用文件期间不会被清理
+        config.diskUsage.lease(file);
+        try {
+            //创建数据源，将url和source存储的位置传进去
+            FileSource source = new FileSource(url, config.sourceInfoStorage);
+            //新建文件缓存
+            FileCache cache = new FileCache(file, config.diskUsage);
+            //新建代理缓存，将资源信息和缓存信息作为参数
+            FileProxyCache fileProxyCache = new FileProxyCache(source, cache, config.downloadScheduler);
+            //为代理注册缓存监听器，当监听器变化时会回调
+            fileProxyCache.registerCacheListener(uiCacheListener);
+            return fileProxyCache;
+        } catch (ProxyCacheException | RuntimeException e) {
+            config.diskUsage.release(file);
+            throw e;
+        }
+    }
+
+    //关闭代理缓存并释放缓存文件的租用
+    private void shutdownProxyCache() {
+        proxyCache.shutdown();
+        proxyCache = null;
+        config.diskUsage.release(config.generateCacheFile(url));
     }
 
     //UIHandler实现了缓存是否可用的接口，保存了url和监听这个url的监听器列表
@@ -35,7 +35,7 @@ public class FileSource implements Source {
         this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
         SourceInfo sourceInfo = sourceInfoStorage.get(url);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
-                new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getLocalMime(url));
+                new SourceInfo(url, Long.MIN_VALUE, ProxyCacheUtils.getLocalMime(url));
 
     }
 
@@ -46,7 +46,7 @@ public class FileSource implements Source {
 
     //打开文件
     @Override
-    public void open(int offset) throws ProxyCacheException {
+    public void open(long offset) throws ProxyCacheException {
         try {
             inputStream = new BufferedInputStream(new FileInputStream(sourceInfo.url),DEFAULT_BUFFER_SIZE);
         } catch (FileNotFoundException e) {
@@ -57,8 +57,8 @@ public class FileSource implements Source {
     }
 
     @Override
-    public int length() throws ProxyCacheException {
-        if (sourceInfo.length == Integer.MIN_VALUE) {
+    public long length() throws ProxyCacheException {
+        if (sourceInfo.length == Long.MIN_VALUE) {
             fetchContentInfo();
         }
         return sourceInfo.length;
@@ -93,10 +93,10 @@ public class FileSource implements Source {
 
         try {
             File sourceFile = new File(sourceInfo.url);
-            float length = sourceFile.length();
+            long length = sourceFile.length();
             String mime= "flv";
             //构造新的源数据类型
-            this.sourceInfo = new SourceInfo(sourceInfo.url, (int)length, mime);
+            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
             //将url和对应的sourceInfo存储下来,这里使用了数据库存储
             this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
             Log.i(LOG_TAG, "Source info fetched: " + sourceInfo);
@@ -1,66 +1,110 @@
 package com.danikula.videocache;
 
-import android.text.TextUtils;
-
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
 /**
  * Model for Http GET request.
+ * <p/>
+ * Request is parsed from raw bytes in single pass without regular expressions and intermediate strings: only
+ * request target is converted to string, it is url-decoded right from bytes if it contains escaped characters.
+ * Request line, headers count and range value are strictly limited, malformed requests are rejected by
+ * {@link IllegalArgumentException}.
+ * <p/>
+ * 'Range' header is parsed according to RFC 7233: closed {@code first-last}, open {@code first-} and suffix
+ * {@code -length} ranges, up to 16 ranges in single header. Malformed 'Range' header is ignored.
+ *
  * http get请求的模型类
- * 从输入流中获取请求类再自己包装
+ * 直接从字节解析请求行和请求头，不使用正则表达式，只为请求的目标创建字符串
  * @author Alexey Danilov (danikula@gmail.com).
  */
 class GetRequest {
 
-    private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("[R,r]ange:[ ]?bytes=(\\d*)-");
-    private static final Pattern URL_PATTERN = Pattern.compile("GET /(.*) HTTP");
+    /**
+     * Max size of request line and headers in bytes.
+     */
+    static final int MAX_REQUEST_SIZE = 8 * 1024;
+    private static final int MAX_HEADERS_COUNT = 100;
+    private static final int MAX_OFFSET_DIGITS = 18;
+    private static final int MAX_RANGES = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] GET = {'G', 'E', 'T'};
+    private static final byte[] HTTP_1_0 = {'H', 'T', 'T', 'P', '/', '1', '.', '0'};
+    private static final byte[] RANGE = {'r', 'a', 'n', 'g', 'e'};
+    private static final byte[] CONNECTION = {'c', 'o', 'n', 'n', 'e', 'c', 't', 'i', 'o', 'n'};
+    private static final byte[] BYTES_UNIT = {'b', 'y', 't', 'e', 's', '='};
+    private static final byte[] KEEP_ALIVE = {'k', 'e', 'e', 'p', '-', 'a', 'l', 'i', 'v', 'e'};
+    private static final byte[] CLOSE = {'c', 'l', 'o', 's', 'e'};
 
+    public final String method;
+    //请求的目标，不包括开头的'/'
     public final String uri;
+    //url解码后的请求目标
+    public final String url;
+    //请求的区间，没有Range或者Range不合法时为空
+    public final List<ByteRange> ranges;
+    //第一个区间的开始位置，后缀区间需要知道源的长度才能确定开始位置，这时为0
     public final long rangeOffset;
     public final boolean partial;
+    public final boolean keepAlive;
 
     //包装新的请求
     public GetRequest(String request) {
-        checkNotNull(request);
-        long offset = findRangeOffset(request);
-        this.rangeOffset = Math.max(0, offset);
-        this.partial = offset >= 0;
-        this.uri = findUri(request);
+        this(checkNotNull(request).getBytes(UTF_8));
     }
 
-    public static GetRequest read(InputStream inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-        StringBuilder stringRequest = new StringBuilder();
-        String line;
-        //一直读到，也就是读完了http请求包
-        while (!TextUtils.isEmpty(line = reader.readLine())) { // until new line (headers ending)
-            stringRequest.append(line).append('\n');
-        }
-        return new GetRequest(stringRequest.toString());
+    private GetRequest(byte[] request) {
+        this(new Parser(request, 0, request.length));
     }
 
-    private long findRangeOffset(String request) {
-        Matcher matcher = RANGE_HEADER_PATTERN.matcher(request);
-        if (matcher.find()) {
-            String rangeValue = matcher.group(1);
-            return Long.parseLong(rangeValue);
+    private GetRequest(Parser parser) {
+        this.method = "GET";
+        this.uri = parser.uri;
+        this.url = parser.url;
+        this.ranges = parser.ranges == null ? Collections.<ByteRange>emptyList() : Collections.unmodifiableList(parser.ranges);
+        this.partial = !ranges.isEmpty();
+        this.rangeOffset = partial && !ranges.get(0).isSuffix() ? ranges.get(0).first : 0;
+        this.keepAlive = parser.keepAlive;
+    }
+
+    /**
+     * Parses request from bytes {@code [offset, offset + length)} of buffer, buffer isn't copied.
+     *
+     * @throws IllegalArgumentException if request is malformed or exceeds limits.
+     */
+    static GetRequest parse(byte[] buffer, int offset, int length) {
+        if (length > MAX_REQUEST_SIZE) {
+            throw new IllegalArgumentException("Invalid request: size " + length + " exceeds " + MAX_REQUEST_SIZE + " bytes");
         }
-        return -1;
+        return new GetRequest(new Parser(buffer, offset, offset + length));
     }
 
-    private String findUri(String request) {
-        Matcher matcher = URL_PATTERN.matcher(request);
-        if (matcher.find()) {
-            return matcher.group(1);
+    public static GetRequest read(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[MAX_REQUEST_SIZE];
+        int length = 0;
+        int lineStart = 0;
+        int read;
+        //一直读到空行，也就是读完了http请求头
+        while ((read = inputStream.read()) != -1) {
+            if (length == buffer.length) {
+                throw new IOException("Request headers exceed " + MAX_REQUEST_SIZE + " bytes");
+            }
+            buffer[length++] = (byte) read;
+            if (read == '\n') {
+                boolean emptyLine = length - lineStart == 1 || (length - lineStart == 2 && buffer[lineStart] == '\r');
+                if (emptyLine) {
+                    break;
+                }
+                lineStart = length;
+            }
         }
-        throw new IllegalArgumentException("Invalid request `" + request + "`: url not found!");
+        return parse(buffer, 0, length);
     }
 
     @Override
@@ -68,7 +112,229 @@ class GetRequest {
         return "GetRequest{" +
                 "rangeOffset=" + rangeOffset +
                 ", partial=" + partial +
+                ", ranges=" + ranges +
+                ", keepAlive=" + keepAlive +
                 ", uri='" + uri + '\'' +
                 '}';
     }
+
+    /**
+     * Single pass parser of request line and headers.
+     */
+    private static final class Parser {
+
+        private final byte[] data;
+        private final int end;
+        private int position;
+        private String uri;
+        private String url;
+        private List<ByteRange> ranges;
+        private boolean keepAlive;
+        private long number;
+
+        Parser(byte[] data, int offset, int end) {
+            this.data = data;
+            this.position = offset;
+            this.end = end;
+            parseRequestLine();
+            parseHeaders();
+        }
+
+        // GET /target HTTP/1.1
+        private void parseRequestLine() {
+            int lineEnd = lineEnd();
+            int methodEnd = indexOf(' ', position, lineEnd);
+            if (methodEnd == -1 || !matches(position, methodEnd, GET, false)) {
+                throw new IllegalArgumentException("Invalid request `" + line(lineEnd) + "`: GET method not found!");
+            }
+            int targetStart = methodEnd + 1;
+            int targetEnd = indexOf(' ', targetStart, lineEnd);
+            if (targetEnd == -1 || data[targetStart] != '/') {
+                throw new IllegalArgumentException("Invalid request `" + line(lineEnd) + "`: url not found!");
+            }
+            // HTTP/1.1 connections are persistent by default, HTTP/1.0 ones only if client asks it explicitly
+            boolean http10 = matches(targetEnd + 1, trimEnd(targetEnd + 1, lineEnd), HTTP_1_0, false);
+            keepAlive = !http10;
+            uri = new String(data, targetStart + 1, targetEnd - targetStart - 1, UTF_8);
+            url = decode(targetStart + 1, targetEnd);
+            position = Math.min(lineEnd + 1, end);
+        }
+
+        private void parseHeaders() {
+            int headersCount = 0;
+            while (position < end) {
+                int lineEnd = lineEnd();
+                int valueEnd = trimEnd(position, lineEnd);
+                if (valueEnd == position) {
+                    break; // empty line, headers end
+                }
+                if (++headersCount > MAX_HEADERS_COUNT) {
+                    throw new IllegalArgumentException("Invalid request: more than " + MAX_HEADERS_COUNT + " headers");
+                }
+                int colon = indexOf(':', position, valueEnd);
+                if (colon != -1) {
+                    int valueStart = trimStart(colon + 1, valueEnd);
+                    if (matches(position, colon, RANGE, true)) {
+                        ranges = parseRanges(valueStart, valueEnd);
+                    } else if (matches(position, colon, CONNECTION, true)) {
+                        parseConnection(valueStart, valueEnd);
+                    }
+                }
+                position = Math.min(lineEnd + 1, end);
+            }
+        }
+
+        // bytes=0-499, 1000-, -500 ; returns null if header is malformed or has too many ranges
+        private List<ByteRange> parseRanges(int start, int valueEnd) {
+            if (!startsWithIgnoreCase(start, valueEnd, BYTES_UNIT)) {
+                return null;
+            }
+            List<ByteRange> ranges = new ArrayList<>(1);
+            int index = start + BYTES_UNIT.length;
+            while (true) {
+                index = trimStart(index, valueEnd);
+                int firstStart = index;
+                index = parseNumber(index, valueEnd);
+                long first = index > firstStart ? number : -1;
+                if (index >= valueEnd || data[index] != '-') {
+                    return null;
+                }
+                int lastStart = ++index;
+                index = parseNumber(index, valueEnd);
+                long last = index > lastStart ? number : -1;
+                boolean empty = first < 0 && last < 0;
+                if (empty || (first >= 0 && last >= 0 && last < first) || ranges.size() == MAX_RANGES) {
+                    return null;
+                }
+                ranges.add(new ByteRange(first, last));
+                index = trimStart(index, valueEnd);
+                //后面不是逗号时忽略剩余的内容
+                if (index >= valueEnd || data[index] != ',') {
+                    return ranges;
+                }
+                index++;
+            }
+        }
+
+        // parses decimal number into field 'number', returns index after last digit
+        private int parseNumber(int from, int to) {
+            int index = from;
+            number = 0;
+            while (index < to && data[index] >= '0' && data[index] <= '9') {
+                if (index - from == MAX_OFFSET_DIGITS) {
+                    throw new IllegalArgumentException("Invalid request: too long range offset");
+                }
+                number = number * 10 + (data[index] - '0');
+                index++;
+            }
+            return index;
+        }
+
+        private void parseConnection(int start, int valueEnd) {
+            int tokenEnd = start;
+            while (tokenEnd < valueEnd && data[tokenEnd] != ',' && data[tokenEnd] != ' ') {
+                tokenEnd++;
+            }
+            if (matches(start, tokenEnd, KEEP_ALIVE, true)) {
+                keepAlive = true;
+            } else if (matches(start, tokenEnd, CLOSE, true)) {
+                keepAlive = false;
+            }
+        }
+
+        //url解码：没有转义字符时直接使用请求的目标，否则直接从字节解码，'+'表示空格
+        private String decode(int start, int targetEnd) {
+            int escape = start;
+            while (escape < targetEnd && data[escape] != '%' && data[escape] != '+') {
+                escape++;
+            }
+            if (escape == targetEnd) {
+                return uri;
+            }
+            byte[] decoded = new byte[targetEnd - start];
+            int length = 0;
+            for (int i = start; i < targetEnd; i++) {
+                byte b = data[i];
+                if (b == '+') {
+                    decoded[length++] = ' ';
+                } else if (b == '%') {
+                    if (i + 2 >= targetEnd) {
+                        throw new IllegalArgumentException("Invalid request: incomplete escape in url");
+                    }
+                    decoded[length++] = (byte) (hex(data[i + 1]) << 4 | hex(data[i + 2]));
+                    i += 2;
+                } else {
+                    decoded[length++] = b;
+                }
+            }
+            return new String(decoded, 0, length, UTF_8);
+        }
+
+        private int hex(byte b) {
+            if (b >= '0' && b <= '9') {
+                return b - '0';
+            }
+            if (b >= 'a' && b <= 'f') {
+                return b - 'a' + 10;
+            }
+            if (b >= 'A' && b <= 'F') {
+                return b - 'A' + 10;
+            }
+            throw new IllegalArgumentException("Invalid request: illegal hex character in url escape");
+        }
+
+        private int lineEnd() {
+            int lineEnd = indexOf('\n', position, end);
+            return lineEnd == -1 ? end : lineEnd;
+        }
+
+        private int indexOf(char c, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (data[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int trimStart(int from, int to) {
+            while (from < to && (data[from] == ' ' || data[from] == '\t')) {
+                from++;
+            }
+            return from;
+        }
+
+        private int trimEnd(int from, int to) {
+            while (to > from && (data[to - 1] == ' ' || data[to - 1] == '\t' || data[to - 1] == '\r')) {
+                to--;
+            }
+            return to;
+        }
+
+        // expected value must be in lower case if it is compared ignoring case
+        private boolean matches(int from, int to, byte[] expected, boolean ignoreCase) {
+            if (to - from != expected.length) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                byte b = data[from + i];
+                if (b != expected[i] && (!ignoreCase || toLowerCase(b) != expected[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean startsWithIgnoreCase(int from, int to, byte[] prefix) {
+            return to - from >= prefix.length && matches(from, from + prefix.length, prefix, true);
+        }
+
+        private byte toLowerCase(byte b) {
+            return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+        }
+
+        private String line(int lineEnd) {
+            return new String(data, position, lineEnd - position, UTF_8);
+        }
+    }
 }
@@ -1,14 +1,18 @@
 package com.danikula.videocache;
 
-import android.text.TextUtils;
-
 import com.danikula.videocache.file.FileCache;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
+import static com.danikula.videocache.Preconditions.checkArgument;
 import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
 
 /**
@@ -25,12 +29,39 @@ class HttpProxyCache extends ProxyCache {
 
     private final HttpUrlSource source;
     private final FileCache cache;
+    //同时下载一个源的Range连接数，1表示顺序下载
+    private final int segmentedConnections;
+    private SegmentedDownload segmentedDownload;
+    //同一个url的所有响应共用的响应头编码器
+    private final ResponseHeaders responseHeaders = new ResponseHeaders();
+    //客户端拖动进度后正在从源下载的区间，多个客户端需要同一个区间时共享一个下载
+    private final RangeFetches rangeFetches = new RangeFetches();
     private CacheListener listener;
 
     public HttpProxyCache(HttpUrlSource source, FileCache cache) {
-        super(source, cache);
+        this(source, cache, DownloadScheduler.getDefault());
+    }
+
+    public HttpProxyCache(HttpUrlSource source, FileCache cache, DownloadScheduler downloadScheduler) {
+        this(source, cache, downloadScheduler, 1);
+    }
+
+    public HttpProxyCache(HttpUrlSource source, FileCache cache, DownloadScheduler downloadScheduler, int segmentedConnections) {
+        this(source, cache, downloadScheduler, segmentedConnections, DEFAULT_MAX_SOURCE_RETRIES);
+    }
+
+    public HttpProxyCache(HttpUrlSource source, FileCache cache, DownloadScheduler downloadScheduler, int segmentedConnections,
+                          int maxSourceRetries) {
+        this(source, cache, downloadScheduler, segmentedConnections, maxSourceRetries, ReadAheadPolicy.unlimited());
+    }
+
+    public HttpProxyCache(HttpUrlSource source, FileCache cache, DownloadScheduler downloadScheduler, int segmentedConnections,
+                          int maxSourceRetries, ReadAheadPolicy readAheadPolicy) {
+        super(source, cache, downloadScheduler, maxSourceRetries, readAheadPolicy);
+        checkArgument(segmentedConnections > 0, "Connections count must be positive number!");
         this.cache = cache;
         this.source = source;
+        this.segmentedConnections = segmentedConnections;
     }
 
     //注册缓存监听器，当缓存发生变化的时候自动回调
@@ -38,65 +69,195 @@ class HttpProxyCache extends ProxyCache {
         this.listener = cacheListener;
     }
 
-    //处理请求
-    public void processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
+    /**
+     * Writes response for request to socket. 'Range' header is handled according to RFC 7233 when length of source
+     * is known: only requested ranges are sent, several ranges are sent as 'multipart/byteranges',
+     * unsatisfiable ranges are answered by 416.
+     * <p/>
+     * Completed cache is served using only stored source info, origin is never requested before response:
+     * source is revalidated in background by {@link CompletedCacheIndex} instead.
+     *
+     * @return {@code true} if connection can be reused for next request: client asked keep-alive and
+     * exactly {@code Content-Length} bytes are written.
+     */
+    public boolean processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
         //获得socket的输出流
         OutputStream out = new BufferedOutputStream(socket.getOutputStream());
-        //获得响应头
-        String responseHeaders = newResponseHeaders(request);
-        //将响应头先写到输出流中
-        out.write(responseHeaders.getBytes("UTF-8"));
-
+        boolean completed = cache.isCompleted();
+        //源的长度未知时，从开始填充缓存的数据连接的响应中获取，不单独请求源的信息；
+        //分段下载需要事先知道长度，这时用探测请求获取
+        if (!completed && !source.isLengthKnown() && !isSegmented() && isReadFromCachePrefix(request)) {
+            waitForSourceOpened();
+        }
+        //根据缓存是否完成判断响应长度是缓存的已缓存的内容还是源数据的长度
+        long length = completed ? cache.available() : source.length();
+        //缓存已经完成时只使用已知的mime，不请求源
+        String mime = completed ? source.getKnownMime() : source.getMime();
+        boolean lengthKnown = length >= 0;
+        boolean keepAlive = request.keepAlive && lengthKnown;
+        if (request.partial && lengthKnown) {
+            List<ByteRange> ranges = getSatisfiableRanges(request, length);
+            if (ranges.isEmpty()) {
+                return responseRangeNotSatisfiable(out, length, keepAlive);
+            }
+            if (ranges.size() > 1) {
+                return responseWithMultipleRanges(out, socket, ranges, length, mime, keepAlive);
+            }
+            ByteRange range = ranges.get(0);
+            long offset = range.start(length);
+            long contentLength = range.end(length) - offset;
+            responseHeaders.write(out, true, offset, contentLength, length, mime, keepAlive);
+            long written = responseWithRange(out, socket, offset, contentLength, range.isBounded());
+            return keepAlive && written == contentLength;
+        }
+        //长度未知时不能确定区间的结束位置，从请求的偏移量开始发送到源结束
         long offset = request.rangeOffset;
-        //再写响应体的内容，如果这个请求的内容使用缓存，就从缓存中取得数据，否则不使用缓存取数据
-        if (isUseCache(request)) {
-            responseWithCache(out, offset);
-        } else {
-            responseWithoutCache(out, offset);
+        long contentLength = request.partial ? length - offset : length;
+        responseHeaders.write(out, request.partial, offset, contentLength, length, mime, keepAlive);
+        long written = responseWithRange(out, socket, offset, contentLength, false);
+        //响应体长度和Content-Length一致时连接才能复用
+        return keepAlive && written == contentLength;
+    }
+
+    private List<ByteRange> getSatisfiableRanges(GetRequest request, long length) {
+        List<ByteRange> ranges = new ArrayList<>(request.ranges.size());
+        for (ByteRange range : request.ranges) {
+            if (range.isSatisfiable(length)) {
+                ranges.add(range);
+            }
         }
+        return ranges;
     }
 
     /**
-     * 是否使用缓存
-     * 当文件长度不大于0 或者 请求不是部分文件的请求 或者，请求的偏移量小于等于缓存可以获取的数量+文件长度*0.2
-     * 返回true,也就是使用缓存
-     * @param request
+     * 发送一个区间的数据：缓存已经完成时直接从文件发送，离缓存的连续部分近的区间等待顺序下载，
+     * 其他区间（用户拖动进度，或者只请求几个字节的有界区间，比如读取文件结尾的moov）只从源下载需要的字节
+     */
+    private long responseWithRange(OutputStream out, Socket socket, long offset, long length, boolean bounded)
+            throws ProxyCacheException, IOException {
+        if (cache.isCompleted()) {
+            return responseWithCompletedCache(out, socket, offset, length);
+        }
+        if (isUseCache(offset, bounded)) {
+            return responseWithCache(out, offset, length);
+        }
+        return responseWithRangeCache(out, offset, length);
+    }
+
+    //没有一个区间在源的范围内
+    private boolean responseRangeNotSatisfiable(OutputStream out, long length, boolean keepAlive) throws IOException {
+        responseHeaders.writeRangeNotSatisfiable(out, length, keepAlive);
+        out.flush();
+        return keepAlive;
+    }
+
+    /**
+     * 多个区间的响应：multipart/byteranges，每个部分有自己的Content-Type和Content-Range，
+     * 所有部分的长度事先计算好，响应可以复用连接
+     */
+    private boolean responseWithMultipleRanges(OutputStream out, Socket socket, List<ByteRange> ranges, long length,
+                                               String mime, boolean keepAlive) throws IOException, ProxyCacheException {
+        long contentLength = responseHeaders.getCloseDelimiterLength();
+        for (ByteRange range : ranges) {
+            long start = range.start(length);
+            long end = range.end(length);
+            contentLength += responseHeaders.getPartHeaderLength(start, end, length, mime) + end - start;
+        }
+        responseHeaders.writeMultipart(out, contentLength, keepAlive);
+        long written = 0;
+        for (ByteRange range : ranges) {
+            long start = range.start(length);
+            long end = range.end(length);
+            responseHeaders.writePartHeader(out, start, end, length, mime);
+            written += responseHeaders.getPartHeaderLength(start, end, length, mime);
+            long partWritten = responseWithRange(out, socket, start, end - start, true);
+            written += partWritten;
+            if (partWritten != end - start) {
+                //部分的数据不完整，后面的部分已经没有意义
+                return false;
+            }
+        }
+        responseHeaders.writeCloseDelimiter(out);
+        out.flush();
+        written += responseHeaders.getCloseDelimiterLength();
+        return keepAlive && written == contentLength;
+    }
+
+    /**
+     * 是否使用顺序下载的缓存
+     * 当文件长度不大于0 或者 请求的偏移量小于等于缓存可以获取的数量+文件长度*0.2时返回true,也就是等待顺序下载的数据；
+     * 否则（用户拖动了进度，或者请求的是有界的区间）按区间从源下载并写到稀疏缓存中
+     * @param offset 请求的区间开始的位置
+     * @param bounded 区间有结束的位置，不需要下载之后的数据
      * @return
      * @throws ProxyCacheException
      */
-    private boolean isUseCache(GetRequest request) throws ProxyCacheException {
-        int sourceLength = source.length();
+    private boolean isUseCache(long offset, boolean bounded) throws ProxyCacheException {
+        long sourceLength = source.length();
         boolean sourceLengthKnown = sourceLength > 0;
-        int cacheAvailable = cache.available();
-        // do not use cache for partial requests which too far from available cache. It seems user seek video.
-        return !sourceLengthKnown || !request.partial || request.rangeOffset <= cacheAvailable + sourceLength * NO_CACHE_BARRIER;
+        long cacheAvailable = cache.available();
+        // partial requests which too far from available cache are served by range. It seems user seek video.
+        return !sourceLengthKnown || (!bounded && offset <= cacheAvailable + sourceLength * NO_CACHE_BARRIER);
+    }
+
+    private boolean isSegmented() {
+        return segmentedConnections > 1;
     }
 
     /**
-     * 根据request来制作响应头
-     * @param request
-     * @return
-     * @throws IOException
-     * @throws ProxyCacheException
+     * 源的长度已知而且大于一个块时分段下载，否则顺序下载
      */
-    private String newResponseHeaders(GetRequest request) throws IOException, ProxyCacheException {
-        //获取source的资源类型
-        String mime = source.getMime();
-        boolean mimeKnown = !TextUtils.isEmpty(mime);
-        //根据缓存是否完成判断响应长度是缓存的已缓存的内容还是源数据的长度
-        int length = cache.isCompleted() ? cache.available() : source.length();
-        boolean lengthKnown = length >= 0;
-        //根据request是不是partial判断content长度是长度-偏移量还是我们能获得的长度
-        long contentLength = request.partial ? length - request.rangeOffset : length;
-        boolean addRange = lengthKnown && request.partial;
-        return new StringBuilder()
-                .append(request.partial ? "HTTP/1.1 206 PARTIAL CONTENT\n" : "HTTP/1.1 200 OK\n")
-                .append("Accept-Ranges: bytes\n")
-                .append(lengthKnown ? String.format("Content-Length: %d\n", contentLength) : "")
-                .append(addRange ? String.format("Content-Range: bytes %d-%d/%d\n", request.rangeOffset, length - 1, length) : "")
-                .append(mimeKnown ? String.format("Content-Type: %s\n", mime) : "")
-                .append("\n") // headers end
-                .toString();
+    @Override
+    synchronized SegmentedDownload getSegmentedDownload() throws ProxyCacheException {
+        if (segmentedDownload == null && isSegmented() && source.isLengthKnown()
+                && source.length() > SegmentedDownload.DEFAULT_CHUNK_SIZE) {
+            segmentedDownload = new SegmentedDownload(source, cache, segmentedConnections);
+        }
+        return segmentedDownload;
+    }
+
+    /**
+     * Returns registry of ranges downloaded right now for clients reading far from cached prefix.
+     */
+    RangeFetches getRangeFetches() {
+        return rangeFetches;
+    }
+
+    //源的校验值变化时丢弃已缓存的数据，下次请求时重新下载
+    @Override
+    void onSourceChanged() throws ProxyCacheException {
+        cache.discard();
+        resetSegmentedDownload();
+    }
+
+    //旧的分段计划是按旧的长度划分的，作废后下次读取时按新的长度重新划分
+    private synchronized void resetSegmentedDownload() {
+        if (segmentedDownload != null) {
+            segmentedDownload.cancel();
+            segmentedDownload = null;
+        }
+    }
+
+    //请求的数据从缓存的连续部分开始，会由顺序读取源的线程填充；后缀区间需要先知道长度
+    private boolean isReadFromCachePrefix(GetRequest request) throws ProxyCacheException {
+        if (!request.partial) {
+            return true;
+        }
+        ByteRange range = request.ranges.get(0);
+        return !range.isSuffix() && !range.isBounded() && range.first <= cache.available();
+    }
+
+    /**
+     * 缓存已经完成时的快速通道：文件内容通过{@link FileCache#transferTo}直接从文件channel发送到socket channel，
+     * 不经过{@link #read(byte[], long, int)}，也不需要每块数据都获取缓存的锁
+     */
+    private long responseWithCompletedCache(OutputStream out, Socket socket, long offset, long length) throws ProxyCacheException, IOException {
+        out.flush(); // headers
+        SocketChannel socketChannel = socket.getChannel();
+        WritableByteChannel target = socketChannel != null ? socketChannel : Channels.newChannel(socket.getOutputStream());
+        long written = cache.transferTo(offset, length, target);
+        onCacheCompleted();
+        return written;
     }
 
     /**
@@ -106,41 +267,101 @@ class HttpProxyCache extends ProxyCache {
      * @throws ProxyCacheException
      * @throws IOException
      */
-    private void responseWithCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
+    private long responseWithCache(OutputStream out, long offset, long length) throws ProxyCacheException, IOException {
         byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        long written = 0;
         int readBytes;
-        //从缓存中读数据到buffer中，再从buffer中写数据到输出流中
-        while ((readBytes = read(buffer, offset, buffer.length)) != -1) {
-            out.write(buffer, 0, readBytes);
-            offset += readBytes;
+        //从缓存中读数据到buffer中，再从buffer中写数据到输出流中，长度已知时不会写超过Content-Length的数据
+        while ((readBytes = read(buffer, offset, bytesToRead(buffer, length, written))) != -1) {
+            int writeBytes = bytesToWrite(readBytes, length, written);
+            out.write(buffer, 0, writeBytes);
+            offset += writeBytes;
+            written += writeBytes;
+            if (length >= 0 && written >= length) {
+                break;
+            }
         }
         out.flush();
+        return written;
+    }
+
+    //有界的区间不等待区间之后的数据
+    private int bytesToRead(byte[] buffer, long length, long written) {
+        return length < 0 ? buffer.length : (int) Math.min(buffer.length, length - written);
+    }
+
+    private int bytesToWrite(int readBytes, long length, long written) {
+        return length < 0 ? readBytes : (int) Math.min(readBytes, length - written);
     }
 
     /**
-     * 不使用缓存即可发出响应，即作为中转站，打开数据源，读取数据再写出到输出流中,不做任何特殊处理
-     * 这里将数据依次读入缓存大小，直到读完为止。
+     * 用户拖动进度时的响应：已经缓存的区间直接从缓存读取，没有缓存的区间从源下载，写到稀疏缓存对应的位置并发给客户端，
+     * 这样同一段数据下次播放时不用再下载
      * @param out
      * @param offset
+     * @param length 响应体的长度，此时源的长度是已知的
      * @throws ProxyCacheException
      * @throws IOException
      */
-    private void responseWithoutCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
-        //新建一个无缓存的源
-        HttpUrlSource newSourceNoCache = new HttpUrlSource(this.source);
+    private long responseWithRangeCache(OutputStream out, long offset, long length) throws ProxyCacheException, IOException {
+        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        long written = 0;
+        while (written < length) {
+            long position = offset + written;
+            long cached = cache.cachedLength(position);
+            if (cached > 0) {
+                int bytesToRead = (int) Math.min(buffer.length, Math.min(cached, length - written));
+                int readBytes = cache.read(buffer, position, bytesToRead);
+                if (readBytes <= 0) {
+                    throw new ProxyCacheException("Error reading cached range at " + position + " from " + cache.file);
+                }
+                out.write(buffer, 0, readBytes);
+                written += readBytes;
+            } else {
+                written += responseWithSourceRange(out, buffer, position, length - written);
+            }
+        }
+        out.flush();
+        return written;
+    }
+
+    /**
+     * 从源下载offset开始的数据，直到遇到下一个已经缓存的区间或者写完length个字节。
+     * 另一个客户端正在下载这个位置时不再请求源，等待数据写到缓存后返回0，由调用者从缓存读取
+     */
+    private long responseWithSourceRange(OutputStream out, byte[] buffer, long offset, long length) throws ProxyCacheException, IOException {
+        long nextCachedOffset = cache.nextCachedOffset(offset);
+        long end = nextCachedOffset < 0 ? offset + length : Math.min(offset + length, nextCachedOffset);
+        RangeFetches.Fetch fetch = rangeFetches.start(offset, end);
+        if (fetch == null) {
+            rangeFetches.await(offset);
+            return 0;
+        }
+        HttpUrlSource rangeSource = new HttpUrlSource(this.source);
         try {
-            //打开数据源，从中读取数据到buffer中，再从buffer中写到输出流中
-            newSourceNoCache.open((int) offset);
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            //只请求需要的区间，响应体读完后连接可以被下一个请求复用
+            rangeSource.open(offset, end - 1);
+            long written = 0;
             int readBytes;
-            while ((readBytes = newSourceNoCache.read(buffer)) != -1) {
-                out.write(buffer, 0, readBytes);
-                //更新offset为原来的offset+readBytes
-                offset += readBytes;
+            while (offset + written < end && (readBytes = rangeSource.read(buffer)) != -1) {
+                int writeBytes = (int) Math.min(readBytes, end - offset - written);
+                cache.write(buffer, offset + written, writeBytes);
+                rangeFetches.onWritten(fetch, offset + written + writeBytes);
+                out.write(buffer, 0, writeBytes);
+                written += writeBytes;
+            }
+            if (written == 0) {
+                throw new ProxyCacheException("Source " + source.getUrl() + " has no data at offset " + offset);
             }
-            out.flush();
+            return written;
+        } catch (SourceChangedException e) {
+            //与顺序读取相同：源已经变化，稀疏缓存中旧版本的区间不能和新的数据一起发送，丢弃缓存
+            source.setSourceInfo(rangeSource);
+            onSourceChangedOutsideReaders();
+            throw e;
         } finally {
-            newSourceNoCache.close();
+            rangeFetches.finish(fetch);
+            rangeSource.close();
         }
     }
 
@@ -6,19 +6,26 @@ import android.util.Log;
 
 import com.danikula.videocache.file.DiskUsage;
 import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.MappedFile;
 import com.danikula.videocache.file.Md5FileNameGenerator;
 import com.danikula.videocache.file.TotalCountLruDiskUsage;
 import com.danikula.videocache.file.TotalSizeLruDiskUsage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.transport.LoopbackTransport;
+import com.danikula.videocache.transport.OriginKeepAlive;
+import com.danikula.videocache.transport.OriginTransport;
+import com.danikula.videocache.transport.UrlConnectionTransport;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -26,14 +33,20 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static com.danikula.videocache.Preconditions.checkAllNotNull;
+import static com.danikula.videocache.Preconditions.checkArgument;
 import static com.danikula.videocache.Preconditions.checkNotNull;
 import static com.danikula.videocache.ProxyCacheUtils.LOG_TAG;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * http代理缓存的服务器，主要用来提供缓存和播放的服务，客户端由远程访问数据转变为由代理服务器取得数据
@@ -61,11 +74,19 @@ public class HttpProxyCacheServer {
     private static final String PROXY_HOST = "127.0.0.1";
     private static final String PING_REQUEST = "ping";
     private static final String PING_RESPONSE = "ping ok";
+    //同时处理的请求数，超过时新的请求立即得到503，而不是在队列中等待正在发送的响应结束
+    static final int MAX_ACTIVE_REQUESTS = 32;
 
     private final Object clientsLock = new Object();
-    private final ExecutorService socketProcessor = Executors.newFixedThreadPool(8);
+    private final ExecutorService socketProcessor = newSocketProcessor();
+    //最后一个客户端断开后延迟关闭代理缓存的定时器
+    private final ScheduledExecutorService lingerScheduler = newLingerScheduler();
     private final Map<String, HttpProxyCacheServerClients> clientsMap = new ConcurrentHashMap<>();
-    private final ServerSocket serverSocket;
+    //已经完整缓存的url的索引和发送完整文件的快速通道
+    private final CompletedCacheIndex completedCacheIndex;
+    private final CompletedFileProxy completedFileProxy = new CompletedFileProxy();
+    private final ServerSocketChannel serverChannel;
+    private final ServerEventLoop eventLoop;
     private final int port;
     private final Thread waitConnectionThread;
     private final Config config;
@@ -77,11 +98,15 @@ public class HttpProxyCacheServer {
 
     private HttpProxyCacheServer(Config config) {
         this.config = checkNotNull(config);
+        this.completedCacheIndex = new CompletedCacheIndex(config);
         try {
             //新建一个本地的内部服务器
             InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
-            this.serverSocket = new ServerSocket(0, 8, inetAddress);
-            this.port = serverSocket.getLocalPort();
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.socket().bind(new InetSocketAddress(inetAddress, 0));
+            this.port = serverChannel.socket().getLocalPort();
+            //所有连接由一个selector线程管理，只有读完请求的连接才占用工作线程
+            this.eventLoop = new ServerEventLoop(serverChannel, socketProcessor, new SocketRequestProcessor());
             //可以将countdownlatch看做线程安全的计数器，保证只有一个线程操作这个计数器，任何调用这个对象上的await()方法都会阻塞，
             //直到这个计数器的计数值被其他的线程减为0为止
             CountDownLatch startSignal = new CountDownLatch(1);
@@ -94,10 +119,24 @@ public class HttpProxyCacheServer {
             makeSureServerWorks();
         } catch (IOException | InterruptedException e) {
             socketProcessor.shutdown();
+            lingerScheduler.shutdown();
             throw new IllegalStateException("Error starting local proxy server", e);
         }
     }
 
+    private static ExecutorService newSocketProcessor() {
+        //没有队列：响应占用工作线程直到发送结束，排队的请求可能要等待整个视频发送完
+        return new ThreadPoolExecutor(0, MAX_ACTIVE_REQUESTS, 60, SECONDS, new SynchronousQueue<Runnable>());
+    }
+
+    private static ScheduledExecutorService newLingerScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(60, SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
     //确保服务器在工作,去ping 服务器，查看是否Ping的通过,如果未通过,睡眠300ms，再次尝试。第二次尝试的时候失败睡眠时间翻倍
     //三次尝试如果都失败说明服务器不工作则关闭代理服务器
     private void makeSureServerWorks() {
@@ -209,22 +248,46 @@ public class HttpProxyCacheServer {
         return cacheFile.exists();
     }
 
+    /**
+     * Returns progress of downloading source for particular url: cached bytes, furthest offset read by clients,
+     * estimated read rate and whether downloading is paused by {@link ReadAheadPolicy}.
+     *
+     * @param url an url of source.
+     * @return progress of downloading or {@code null} if url isn't being served now.
+     */
+    public DownloadProgress getDownloadProgress(String url) {
+        checkNotNull(url, "Url can't be null!");
+        synchronized (clientsLock) {
+            HttpProxyCacheServerClients clients = clientsMap.get(url);
+            try {
+                return clients == null ? null : clients.getDownloadProgress();
+            } catch (ProxyCacheException e) {
+                Log.d(LOG_TAG, "Error getting download progress", e);
+                return null;
+            }
+        }
+    }
+
     //关闭客户端，等待连接的线程结束关闭server的socket接口
     public void shutdown() {
         Log.i(LOG_TAG, "Shutdown proxy server");
 
         shutdownClients();
+        completedCacheIndex.release();
+        lingerScheduler.shutdownNow();
 
         config.sourceInfoStorage.release();
 
+        eventLoop.shutdown();
         waitConnectionThread.interrupt();
         try {
-            if (!serverSocket.isClosed()) {
-                serverSocket.close();
+            if (serverChannel.isOpen()) {
+                serverChannel.close();
             }
         } catch (IOException e) {
             onError(new ProxyCacheException("Error shutting down proxy server", e));
         }
+        socketProcessor.shutdown();
     }
 
     //关闭所有正在通信的客户端
@@ -237,40 +300,35 @@ public class HttpProxyCacheServer {
         }
     }
 
-    /**
-     * 等待客户端建立连接请求
-     */
-    private void waitForRequest() {
-        try {
-            while (!Thread.currentThread().isInterrupted()) {
-                Socket socket = serverSocket.accept();
-                Log.d(LOG_TAG, "Accept new socket " + socket);
-                socketProcessor.submit(new SocketProcessorRunnable(socket));
-            }
-        } catch (IOException e) {
-            onError(new ProxyCacheException("Error during waiting connection", e));
-        }
-    }
-
     /**
      * 处理socket，如果是ping请求，返回ping响应
      * 如果不是ping请求，由clients process Request
+     * @param request
      * @param socket
+     * @return {@code true} if socket is kept alive for next request, {@code false} if it is released
      */
-    private void processSocket(Socket socket) {
+    private boolean processSocket(GetRequest request, Socket socket) {
+        boolean keepAlive = false;
         try {
-            //获取请求数据包
-            GetRequest request = GetRequest.read(socket.getInputStream());
             Log.i(LOG_TAG, "Request to cache proxy:" + request);
-            //请求的数据包编码
-            String url = ProxyCacheUtils.decode(request.uri);
+            //请求的目标在解析时已经url解码
+            String url = request.url;
             if (PING_REQUEST.equals(url)) {
                 //如果是ping请求，返回ping的响应
                 responseToPing(socket);
             } else {
-                //实例化一个cilents,由clients来处理请求
-                HttpProxyCacheServerClients clients = getClients(url);
-                clients.processRequest(request, socket);
+                //已经完整缓存的url直接发送文件，不创建数据源和代理缓存；多个区间的请求由代理缓存处理，
+                //但同样要经过索引，源只在索引中确认是否变化
+                CompletedCacheIndex.Entry completed = completedCacheIndex.find(url);
+                boolean fastPath = completed != null && completedFileProxy.canProcess(request);
+                RandomAccessFile completedFile = fastPath ? completedCacheIndex.open(completed) : null;
+                if (completedFile != null) {
+                    keepAlive = processCompletedFile(request, socket, completed, completedFile);
+                } else {
+                    //实例化一个cilents,由clients来处理请求
+                    HttpProxyCacheServerClients clients = getClients(url);
+                    keepAlive = clients.processRequest(request, socket);
+                }
             }
         } catch (SocketException e) {
             // There is no way to determine that client closed connection http://stackoverflow.com/a/10241044/999458
@@ -279,14 +337,37 @@ public class HttpProxyCacheServer {
         } catch (ProxyCacheException | IOException e) {
             onError(new ProxyCacheException("Error processing request", e));
         } finally {
-            releaseSocket(socket);
+            if (!keepAlive) {
+                releaseSocket(socket);
+            }
             Log.d(LOG_TAG, "Opened connections: " + getClientsCount());
         }
+        return keepAlive;
+    }
+
+    /**
+     * 快速通道：文件在发送期间被租用，不会被清理；发送后通知这个url的监听器缓存是完整的
+     */
+    private boolean processCompletedFile(GetRequest request, Socket socket, CompletedCacheIndex.Entry entry,
+                                         RandomAccessFile file) throws IOException {
+        config.diskUsage.lease(entry.file);
+        try {
+            config.diskUsage.touch(entry.file);
+            boolean keepAlive = completedFileProxy.processRequest(request, socket, entry, file);
+            HttpProxyCacheServerClients clients = clientsMap.get(entry.url);
+            if (clients != null) {
+                clients.onCompletedFileServed(entry.file);
+            }
+            return keepAlive;
+        } finally {
+            ProxyCacheUtils.close(file);
+            config.diskUsage.release(entry.file);
+        }
     }
 
     private void responseToPing(Socket socket) throws IOException {
         OutputStream out = socket.getOutputStream();
-        out.write("HTTP/1.1 200 OK\n\n".getBytes());
+        out.write("HTTP/1.1 200 OK\nConnection: close\n\n".getBytes());
         out.write(PING_RESPONSE.getBytes());
     }
 
@@ -296,7 +377,7 @@ public class HttpProxyCacheServer {
             HttpProxyCacheServerClients clients = clientsMap.get(url);
             if (clients == null) {
                 //将url加入到clients map中
-                clients = new HttpProxyCacheServerClients(url, config);
+                clients = new HttpProxyCacheServerClients(url, config, lingerScheduler);
                 clientsMap.put(url, clients);
             }
             return clients;
@@ -369,23 +450,17 @@ public class HttpProxyCacheServer {
         @Override
         public void run() {
             startSignal.countDown();
-            waitForRequest();
+            eventLoop.run();
         }
     }
-/**
- * 处理socket的线程
- * */
-    private final class SocketProcessorRunnable implements Runnable {
-
-        private final Socket socket;
-
-        public SocketProcessorRunnable(Socket socket) {
-            this.socket = socket;
-        }
+    /**
+     * 处理selector线程读好的请求，在工作线程中执行
+     */
+    private final class SocketRequestProcessor implements ServerEventLoop.RequestProcessor {
 
         @Override
-        public void run() {
-            processSocket(socket);
+        public boolean processRequest(GetRequest request, Socket socket) {
+            return processSocket(request, socket);
         }
     }
 
@@ -415,12 +490,21 @@ public class HttpProxyCacheServer {
         private FileNameGenerator fileNameGenerator;
         private DiskUsage diskUsage;
         private SourceInfoStorage sourceInfoStorage;
+        private DownloadScheduler downloadScheduler;
+        private OriginTransport originTransport;
+        private int segmentedConnections = 1;
+        private int maxSourceRetries = ProxyCache.DEFAULT_MAX_SOURCE_RETRIES;
+        private ReadAheadPolicy readAheadPolicy = ReadAheadPolicy.unlimited();
+        private long lingerMillis = 0;
+        private boolean mapCompletedFiles = false;
 
         public Builder(Context context) {
             this.sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context);
             this.cacheRoot = StorageUtils.getIndividualCacheDirectory(context);
             this.diskUsage = new TotalSizeLruDiskUsage(DEFAULT_MAX_SIZE);
             this.fileNameGenerator = new Md5FileNameGenerator();
+            this.downloadScheduler = DownloadScheduler.getDefault();
+            this.originTransport = new UrlConnectionTransport();
         }
 
         /**
@@ -480,6 +564,145 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * Sets max count of sources downloaded at the same time, other downloads wait in queue.
+         * Default value is {@link DownloadScheduler#DEFAULT_MAX_CONCURRENT_DOWNLOADS}.
+         * <p/>
+         * Note this method overrides result of calling {@link #downloadScheduler(DownloadScheduler)}
+         *
+         * @param count max count of concurrent downloads.
+         * @return a builder.
+         */
+        public Builder maxConcurrentDownloads(int count) {
+            this.downloadScheduler = new DownloadScheduler(count);
+            return this;
+        }
+
+        /**
+         * Sets scheduler that runs downloads of sources. Single scheduler can be shared by several servers
+         * to limit total count of concurrent downloads, it also provides download queue metrics.
+         * By default all servers share single scheduler.
+         * <p/>
+         * Note this method overrides result of calling {@link #maxConcurrentDownloads(int)}
+         *
+         * @param downloadScheduler a download scheduler, can't be null.
+         * @return a builder.
+         */
+        public Builder downloadScheduler(DownloadScheduler downloadScheduler) {
+            this.downloadScheduler = checkNotNull(downloadScheduler);
+            return this;
+        }
+
+        /**
+         * Sets keep-alive of connections to origin servers, it also provides estimated counters of requests
+         * that reuse alive connection. By default all servers share single keep-alive.
+         * <p/>
+         * Note this method overrides result of calling {@link #originTransport(OriginTransport)}
+         *
+         * @param originKeepAlive a keep-alive of connections, can't be null.
+         * @return a builder.
+         */
+        public Builder originKeepAlive(OriginKeepAlive originKeepAlive) {
+            this.originTransport = new UrlConnectionTransport(checkNotNull(originKeepAlive));
+            return this;
+        }
+
+        /**
+         * Sets transport used to request data from origin servers, e.g. implementation that multiplexes
+         * range requests over single HTTP/2 connection or {@link LoopbackTransport} for offline tests.
+         * Default transport is {@link UrlConnectionTransport}.
+         * <p/>
+         * Note this method overrides result of calling {@link #originKeepAlive(OriginKeepAlive)}
+         *
+         * @param originTransport a transport, can't be null.
+         * @return a builder.
+         */
+        public Builder originTransport(OriginTransport originTransport) {
+            this.originTransport = checkNotNull(originTransport);
+            return this;
+        }
+
+        /**
+         * Enables segmented download: every source is split into chunks that are downloaded by {@code connections}
+         * range requests at the same time and assembled in cache, chunks after current read position are downloaded
+         * first. It makes caching much faster on fast networks where single connection can't saturate link.
+         * Every connection takes own slot of download scheduler, see {@link #maxConcurrentDownloads(int)}.
+         * <p/>
+         * Source is downloaded by single connection by default ({@code connections} is 1).
+         *
+         * @param connections count of range connections used to download single source.
+         * @return a builder.
+         */
+        public Builder segmentedDownload(int connections) {
+            checkArgument(connections > 0, "Connections count must be positive number!");
+            this.segmentedConnections = connections;
+            return this;
+        }
+
+        /**
+         * Sets max count of attempts to resume downloading source after network error (connection reset or
+         * no data for 15 seconds). Source is reopened from the end of cached data after delay that doubles with every
+         * attempt, so clients don't notice short network failures. Resumed request is validated by 'If-Range',
+         * data of changed source is never combined with cached one.
+         * Default value is 3.
+         *
+         * @param count max count of attempts to resume downloading, 0 to report errors immediately.
+         * @return a builder.
+         */
+        public Builder maxSourceRetries(int count) {
+            checkArgument(count >= 0, "Source retries count can't be negative!");
+            this.maxSourceRetries = count;
+            return this;
+        }
+
+        /**
+         * Sets policy that limits how far downloading of source goes ahead of clients, e.g.
+         * {@code ReadAheadPolicy.secondsAhead(30, 2 * 1024 * 1024)}. Downloading is paused when enough data is cached
+         * ahead of clients and resumed when they approach end of cached data, so abandoned videos don't waste traffic.
+         * Source is downloaded till the end by default.
+         *
+         * @param readAheadPolicy a read ahead policy, can't be null.
+         * @return a builder.
+         */
+        public Builder readAheadPolicy(ReadAheadPolicy readAheadPolicy) {
+            this.readAheadPolicy = checkNotNull(readAheadPolicy);
+            return this;
+        }
+
+        /**
+         * Sets period proxy cache of url stays open and keeps downloading after its last client disconnects.
+         * Players often close range connection and open new one a few milliseconds later while seeking, so lingering
+         * proxy cache is reused by next request instead of reopening cache file and origin connection.
+         * Cache file is not deleted by {@link DiskUsage} while proxy cache lingers.
+         * <p/>
+         * Proxy cache is closed immediately by default (period is 0), a few seconds is good value for video players.
+         *
+         * @param lingerPeriod period to keep proxy cache open, 0 to close it immediately.
+         * @param unit         time unit of period.
+         * @return a builder.
+         */
+        public Builder proxyCacheLinger(long lingerPeriod, TimeUnit unit) {
+            checkArgument(lingerPeriod >= 0, "Linger period can't be negative!");
+            this.lingerMillis = checkNotNull(unit).toMillis(lingerPeriod);
+            return this;
+        }
+
+        /**
+         * Enables reading of completely cached files through memory mapping. Mapping of file is shared by all clients
+         * of its url, so reads are memory copies instead of file reads. Large files are mapped by windows
+         * of {@link MappedFile#DEFAULT_WINDOW_SIZE} bytes. Mapping is released when file is evicted from cache or
+         * server is shut down.
+         * <p/>
+         * Files are read by {@link java.nio.channels.FileChannel#transferTo} by default (mapping is disabled).
+         *
+         * @param enabled {@code true} to map completed files.
+         * @return a builder.
+         */
+        public Builder memoryMapCompletedFiles(boolean enabled) {
+            this.mapCompletedFiles = enabled;
+            return this;
+        }
+
         /**
          * Builds new instance of {@link HttpProxyCacheServer}.
          *
@@ -490,8 +713,9 @@ public class HttpProxyCacheServer {
             return new HttpProxyCacheServer(config);
         }
 
-        private Config buildConfig() {
-            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage);
+        Config buildConfig() {
+            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, downloadScheduler, originTransport, segmentedConnections,
+                    maxSourceRetries, readAheadPolicy, lingerMillis, mapCompletedFiles);
         }
 
     }
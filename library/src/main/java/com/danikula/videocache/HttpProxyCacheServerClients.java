@@ -11,9 +11,12 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * Client for {@link HttpProxyCacheServer}
@@ -29,36 +32,67 @@ final class HttpProxyCacheServerClients {
     private final List<CacheListener> listeners = new CopyOnWriteArrayList<>();
     private final CacheListener uiCacheListener;
     private final Config config;
+    private final ScheduledExecutorService lingerScheduler;
+    //客户端清零后等待关闭代理缓存的任务，新的请求到来时取消
+    private Runnable lingerTask;
+    private Future<?> lingerFuture;
 
     //构造器，根据Url和配置新建一个client对象,自动注册一个缓存监听器
-    public HttpProxyCacheServerClients(String url, Config config) {
+    public HttpProxyCacheServerClients(String url, Config config, ScheduledExecutorService lingerScheduler) {
         this.url = checkNotNull(url);
         this.config = checkNotNull(config);
+        this.lingerScheduler = checkNotNull(lingerScheduler);
         this.uiCacheListener = new UiListenerHandler(url, listeners);
     }
 
-    public void processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
-        startProcessRequest();
+    public boolean processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
+        HttpProxyCache proxyCache = startProcessRequest();
         try {
-            clientsCount.incrementAndGet();
-            proxyCache.processRequest(request, socket);
+            return proxyCache.processRequest(request, socket);
         } finally {
             finishProcessRequest();
         }
     }
 
-    private synchronized void startProcessRequest() throws ProxyCacheException {
+    //客户端计数和代理缓存在同一个锁中更新，延迟关闭的任务不会关闭正在使用的代理缓存
+    private synchronized HttpProxyCache startProcessRequest() throws ProxyCacheException {
+        cancelLinger();
         proxyCache = proxyCache == null ? newHttpProxyCache() : proxyCache;
+        clientsCount.incrementAndGet();
+        return proxyCache;
     }
 
-    //客户端清零后，关闭代理缓存
+    //客户端清零后，关闭代理缓存；设置了延迟时，代理缓存继续下载一段时间，供马上到来的下一个请求使用
     private synchronized void finishProcessRequest() {
-        if (clientsCount.decrementAndGet() <= 0) {
-            proxyCache.shutdown();
-            proxyCache = null;
+        if (clientsCount.decrementAndGet() <= 0 && proxyCache != null) {
+            if (config.lingerMillis > 0) {
+                lingerTask = new LingerShutdownRunnable();
+                lingerFuture = lingerScheduler.schedule(lingerTask, config.lingerMillis, MILLISECONDS);
+            } else {
+                shutdownProxyCache();
+            }
+        }
+    }
+
+    private synchronized void onLingerExpired(Runnable task) {
+        //任务已经被取消或者被新的任务代替
+        if (task == lingerTask) {
+            lingerTask = null;
+            lingerFuture = null;
+            if (clientsCount.get() <= 0 && proxyCache != null) {
+                shutdownProxyCache();
+            }
         }
     }
 
+    private void cancelLinger() {
+        if (lingerFuture != null) {
+            lingerFuture.cancel(false);
+        }
+        lingerTask = null;
+        lingerFuture = null;
+    }
+
     public void registerCacheListener(CacheListener cacheListener) {
         listeners.add(cacheListener);
     }
@@ -67,35 +101,73 @@ final class HttpProxyCacheServerClients {
         listeners.remove(cacheListener);
     }
 
-    public void shutdown() {
+    public synchronized void shutdown() {
+        cancelLinger();
         listeners.clear();
         if (proxyCache != null) {
             proxyCache.registerCacheListener(null);
-            proxyCache.shutdown();
-            proxyCache = null;
+            shutdownProxyCache();
         }
         clientsCount.set(0);
     }
 
+    //完整的缓存文件由快速通道发送后，同样通知监听器缓存可用的比例是100
+    void onCompletedFileServed(File file) {
+        if (!listeners.isEmpty()) {
+            uiCacheListener.onCacheAvailable(file, url, 100);
+        }
+    }
+
     public int getClientsCount() {
         return clientsCount.get();
     }
 
+    //没有正在处理的请求时返回null
+    public DownloadProgress getDownloadProgress() throws ProxyCacheException {
+        HttpProxyCache proxyCache = this.proxyCache;
+        return proxyCache == null ? null : proxyCache.getDownloadProgress();
+    }
+
     /**
      * 创建一个http代理的缓存
      * @return
      * @throws ProxyCacheException
      */
     private HttpProxyCache newHttpProxyCache() throws ProxyCacheException {
-        //创建httpurlsource,作为数据源，将url和source存储的位置传进去
-        HttpUrlSource source = new HttpUrlSource(url, config.sourceInfoStorage);
-        //新建文件缓存
-        FileCache cache = new FileCache(config.generateCacheFile(url), config.diskUsage);
-        //新建代理缓存，将远程资源信息和缓存信息作为参数
-        HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache);
-        //为代理注册缓存监听器，当监听器变化时会回调
-        httpProxyCache.registerCacheListener(uiCacheListener);
-        return httpProxyCache;
+        File file = config.generateCacheFile(url);
+        //先租用缓存文件，代理使用文件期间不会被清理
+        config.diskUsage.lease(file);
+        try {
+            //创建数据源，将url和source存储的位置传进去
+            HttpUrlSource source = new HttpUrlSource(url, config.sourceInfoStorage, config.originTransport);
+            //新建文件缓存
+            FileCache cache = new FileCache(file, config.diskUsage, config.mapCompletedFiles);
+            //新建代理缓存，将资源信息和缓存信息作为参数
+            HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache, config.downloadScheduler,
+                    config.segmentedConnections, config.maxSourceRetries, config.readAheadPolicy);
+            //为代理注册缓存监听器，当监听器变化时会回调
+            httpProxyCache.registerCacheListener(uiCacheListener);
+            return httpProxyCache;
+        } catch (ProxyCacheException | RuntimeException e) {
+            config.diskUsage.release(file);
+            throw e;
+        }
+    }
+
+    //关闭代理缓存并释放缓存文件的租用
+    private void shutdownProxyCache() {
+        proxyCache.shutdown();
+        proxyCache = null;
+        config.diskUsage.release(config.generateCacheFile(url));
+    }
+
+    //延迟时间到了还没有新的请求时关闭代理缓存
+    private final class LingerShutdownRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            onLingerExpired(this);
+        }
     }
 
     //UIHandler实现了缓存是否可用的接口，保存了url和监听这个url的监听器列表
@@ -5,56 +5,68 @@ import android.util.Log;
 
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.transport.OriginResponse;
+import com.danikula.videocache.transport.OriginTransport;
+import com.danikula.videocache.transport.UrlConnectionTransport;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.SocketTimeoutException;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
 import static com.danikula.videocache.ProxyCacheUtils.LOG_TAG;
-import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
-import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
-import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 
 /**
  * 将http资源作为源数据，实现源数据的接口
  * {@link Source} that uses http resource as source for {@link ProxyCache}.
+ * Requests are sent by {@link OriginTransport}, {@link UrlConnectionTransport} is used by default.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 public class HttpUrlSource implements Source {
 
-    private static final int MAX_REDIRECTS = 5;
+    private static final int PROBE_TIMEOUT = 10000;
+    //数据连接超过这个时间没有收到数据时认为连接已经停滞，读取失败后由ProxyCache重新打开
+    static final int STALL_TIMEOUT = 15000;
     private final SourceInfoStorage sourceInfoStorage;
+    private final OriginTransport transport;
     private SourceInfo sourceInfo;
-    private HttpURLConnection connection;
+    private OriginResponse response;
     private InputStream inputStream;
+    //响应体还没有读取的字节数，-1表示未知；读完的连接可以复用
+    private long remainingBytes;
+    private boolean exhausted;
 
     public HttpUrlSource(String url) {
         this(url, SourceInfoStorageFactory.newEmptySourceInfoStorage());
     }
 
     public HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage) {
+        this(url, sourceInfoStorage, new UrlConnectionTransport());
+    }
+
+    public HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, OriginTransport transport) {
         this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
+        this.transport = checkNotNull(transport);
         SourceInfo sourceInfo = sourceInfoStorage.get(url);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
-                new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
+                new SourceInfo(url, Long.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
     }
 
     public HttpUrlSource(HttpUrlSource source) {
         this.sourceInfo = source.sourceInfo;
         this.sourceInfoStorage = source.sourceInfoStorage;
+        this.transport = source.transport;
     }
 
     @Override
-    public synchronized int length() throws ProxyCacheException {
-        if (sourceInfo.length == Integer.MIN_VALUE) {
+    public synchronized long length() throws ProxyCacheException {
+        if (sourceInfo.length == Long.MIN_VALUE) {
             fetchContentInfo();
         }
         return sourceInfo.length;
@@ -66,44 +78,142 @@ public class HttpUrlSource implements Source {
      * @throws ProxyCacheException
      */
     @Override
-    public void open(int offset) throws ProxyCacheException {
+    public void open(long offset) throws ProxyCacheException {
+        open(offset, -1);
+    }
+
+    /**
+     * 打开http连接，只请求[offset, end]范围的数据，end为-1时请求到文件结束。
+     * 范围有界时响应体可以读完，连接关闭后可以被下一个请求复用
+     * @param offset offset in bytes for source.
+     * @param end    offset of last requested byte (inclusive) or {@code -1} to read source till the end.
+     * @throws ProxyCacheException
+     */
+    public void open(long offset, long end) throws ProxyCacheException {
+        SourceInfo knownInfo = sourceInfo;
+        boolean rangeRequest = offset > 0 || end >= 0;
+        exhausted = false;
         try {
-            connection = openConnection(offset, -1);
-            String mime = connection.getContentType();
-            inputStream = new BufferedInputStream(connection.getInputStream(), DEFAULT_BUFFER_SIZE);
-            int length = readSourceAvailableBytes(connection, offset, connection.getResponseCode());
-            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
+            //续传时带上If-Range，源变化时服务器返回整个新文件而不是请求的区间
+            response = transport.open(knownInfo.url, offset, end, knownInfo.validator, STALL_TIMEOUT);
+            int responseCode = response.getResponseCode();
+            //错误的响应（例如CDN返回的503页面）不包含源的信息，不能修改已知的信息
+            checkSuccessful(responseCode, knownInfo.url);
+            //响应没有Content-Type时保留已知的mime
+            String mime = response.getHeader("Content-Type");
+            mime = TextUtils.isEmpty(mime) ? knownInfo.mime : mime;
+            String validator = getValidator(response);
+            long length = readSourceAvailableBytes(response, offset, responseCode);
+            this.sourceInfo = new SourceInfo(knownInfo.url, length, mime, validator);
             this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+            //服务器忽略Range返回200本身不说明源变化（有的服务器不支持Range），只有校验值或者长度不一致才是变化；
+            //已知校验值而响应没有校验值时无法确认源没有变化，同样当作变化处理，已缓存的数据被丢弃
+            boolean rangeIgnored = rangeRequest && responseCode == HTTP_OK;
+            boolean lengthChanged = rangeIgnored && knownInfo.length >= 0 && length >= 0 && knownInfo.length != length;
+            if (isChanged(knownInfo.validator, validator) || lengthChanged) {
+                throw new SourceChangedException("Source " + knownInfo.url + " is changed: validator '" +
+                        knownInfo.validator + "' doesn't match '" + validator + "' or length " + knownInfo.length +
+                        " doesn't match " + length);
+            }
+            if (rangeIgnored && offset > 0) {
+                throw new ProxyCacheException("Source " + knownInfo.url + " doesn't support range requests");
+            }
+            inputStream = new BufferedInputStream(response.getBody(), DEFAULT_BUFFER_SIZE);
+            remainingBytes = getContentLength(response);
+            exhausted = remainingBytes == 0;
         } catch (IOException e) {
-            throw new ProxyCacheException("Error opening connection for " + sourceInfo.url + " with offset " + offset, e);
+            close();
+            throw new ProxyCacheException("Error opening connection for " + knownInfo.url + " with offset " + offset, e);
+        } catch (ProxyCacheException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns strong validator of response to be used as 'If-Range': ETag or Last-Modified date if ETag is absent
+     * or weak. Returns {@code null} if response has no validator.
+     */
+    private String getValidator(OriginResponse response) {
+        String etag = response.getHeader("ETag");
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) {
+            return etag;
         }
+        String lastModified = response.getHeader("Last-Modified");
+        return TextUtils.isEmpty(lastModified) ? null : lastModified;
+    }
+
+    /**
+     * Returns {@code true} if response with {@code validator} can't be stitched to data downloaded with
+     * {@code knownValidator}: validators differ or response has no validator at all, so it can't be verified.
+     */
+    private boolean isChanged(String knownValidator, String validator) {
+        return knownValidator != null && !knownValidator.equals(validator);
+    }
+
+    /**
+     * Throws exception for not successful (not 2xx) response. Server errors (5xx) are temporary, so exception
+     * is caused by {@link IOException} and reading is retried by {@link ProxyCache}, client errors are not retried.
+     */
+    private void checkSuccessful(int responseCode, String url) throws ProxyCacheException {
+        if (responseCode >= 200 && responseCode < 300) {
+            return;
+        }
+        String message = "Error response " + responseCode + " for " + url;
+        throw responseCode >= 500 ? new ProxyCacheException(message, new IOException(message)) : new ProxyCacheException(message);
     }
 
     /**
      * 如果返回的是OK，那么文件大小是contentlength,
-     * 如果赶回的是partial，则是contentlength+offset,是所接收到的文件大小
-     * @param connection
+     * 如果赶回的是partial，则是Content-Range中的总长度，没有的话是contentlength+offset
+     * @param response
      * @param offset
      * @param responseCode
      * @return
      * @throws IOException
      */
-    private int readSourceAvailableBytes(HttpURLConnection connection, int offset, int responseCode) throws IOException {
-        int contentLength = connection.getContentLength();
-        return responseCode == HTTP_OK ? contentLength
-                : responseCode == HTTP_PARTIAL ? contentLength + offset : sourceInfo.length;
+    private long readSourceAvailableBytes(OriginResponse response, long offset, int responseCode) throws IOException {
+        long contentLength = getContentLength(response);
+        if (responseCode == HTTP_PARTIAL) {
+            long totalLength = getTotalLength(response);
+            return totalLength >= 0 ? totalLength : contentLength + offset;
+        }
+        return responseCode == HTTP_OK ? contentLength : sourceInfo.length;
+    }
+
+    /**
+     * {@link java.net.HttpURLConnection#getContentLength()} returns int and overflows for sources bigger than 2 Gb,
+     * so header is parsed as long. Returns {@code -1} if length is unknown.
+     */
+    private long getContentLength(OriginResponse response) {
+        String contentLength = response.getHeader("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Wrong Content-Length '" + contentLength + "' for " + sourceInfo.url);
+            return -1;
+        }
     }
 
+    /**
+     * 关闭数据源，响应体已经读完时连接归还给连接池复用，否则断开连接
+     */
     @Override
     public void close() throws ProxyCacheException {
-        if (connection != null) {
+        if (response != null) {
             try {
-                connection.disconnect();
+                response.release(exhausted);
             } catch (NullPointerException | IllegalArgumentException e) {
                 String message = "Wait... but why? WTF!? " +
                         "Really shouldn't happen any more after fixing https://github.com/danikula/AndroidVideoCache/issues/43. " +
                         "If you read it on your device log, please, notify me danikula@gmail.com or create issue here https://github.com/danikula/AndroidVideoCache/issues.";
                 throw new RuntimeException(message, e);
+            } finally {
+                response = null;
+                inputStream = null;
             }
         }
     }
@@ -121,7 +231,16 @@ public class HttpUrlSource implements Source {
         }
         try {
             //从输入流中读取数据到buffer中
-            return inputStream.read(buffer, 0, buffer.length);
+            int read = inputStream.read(buffer, 0, buffer.length);
+            if (read == -1) {
+                exhausted = true;
+            } else if (remainingBytes > 0) {
+                remainingBytes -= read;
+                exhausted = remainingBytes <= 0;
+            }
+            return read;
+        } catch (SocketTimeoutException e) {
+            throw new ProxyCacheException("Reading source " + sourceInfo.url + " is stalled for " + STALL_TIMEOUT + " ms", e);
         } catch (InterruptedIOException e) {
             throw new InterruptedProxyCacheException("Reading source " + sourceInfo.url + " is interrupted", e);
         } catch (IOException e) {
@@ -131,75 +250,109 @@ public class HttpUrlSource implements Source {
 
     /**
      * 获取文件内容信息,可以获得url,文件大小，文件类型等信息
+     * 只请求第一个字节（Range: bytes=0-0），长度从Content-Range中获取，不会下载整个文件；
+     * 服务器不支持Range返回200时，只读取响应头，不读取响应体
      * @throws ProxyCacheException
      */
     private void fetchContentInfo() throws ProxyCacheException {
         Log.d(LOG_TAG, "Read content info from " + sourceInfo.url);
-        HttpURLConnection urlConnection = null;
-        InputStream inputStream = null;
+        OriginResponse probe = null;
+        boolean drained = false;
         try {
-            urlConnection = openConnection(0, 10000);
-            int length = urlConnection.getContentLength();
-            String mime = urlConnection.getContentType();
-            inputStream = urlConnection.getInputStream();
-            //构造新的源数据类型
-            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
+            probe = transport.open(sourceInfo.url, 0, 0, null, PROBE_TIMEOUT);
+            int responseCode = probe.getResponseCode();
+            if (responseCode < 200 || responseCode >= 300) {
+                //错误的响应不包含源的信息，保留已知的信息
+                Log.w(LOG_TAG, "Error response " + responseCode + " fetching info from " + sourceInfo.url);
+                return;
+            }
+            long length = responseCode == HTTP_PARTIAL ? getTotalLength(probe) : getContentLength(probe);
+            String mime = probe.getHeader("Content-Type");
+            if (responseCode == HTTP_PARTIAL) {
+                //响应体只有一个字节，读完后连接可以复用
+                InputStream inputStream = probe.getBody();
+                while (inputStream.read() != -1) {
+                    // skip probed byte
+                }
+                drained = true;
+            }
+            //构造新的源数据类型，探测响应没有校验值时保留已知的校验值
+            String validator = getValidator(probe);
+            validator = validator != null ? validator : sourceInfo.validator;
+            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime, validator);
             //将url和对应的sourceInfo存储下来
             this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
             Log.i(LOG_TAG, "Source info fetched: " + sourceInfo);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error fetching info from " + sourceInfo.url, e);
         } finally {
-            ProxyCacheUtils.close(inputStream);
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (probe != null) {
+                probe.release(drained);
             }
         }
     }
 
     /**
-     * 打开连接，考虑重定向的问题，返回最终打开的连接
-     * @param offset
-     * @param timeout
-     * @return
-     * @throws IOException
-     * @throws ProxyCacheException
+     * Returns total length of source from 'Content-Range: bytes 0-0/12345' header or {@code -1} if it is unknown.
      */
+    private long getTotalLength(OriginResponse response) {
+        String contentRange = response.getHeader("Content-Range");
+        int slashIndex = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        if (slashIndex == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slashIndex + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1; // 'bytes 0-0/*' for unknown length
+        }
+    }
 
-    private HttpURLConnection openConnection(int offset, int timeout) throws IOException, ProxyCacheException {
-        HttpURLConnection connection;
-        boolean redirected;
-        int redirectCount = 0;
-        String url = this.sourceInfo.url;
-        do {
-            Log.d(LOG_TAG, "Open connection " + (offset > 0 ? " with offset " + offset : "") + " to " + url);
-            connection = (HttpURLConnection) new URL(url).openConnection();
-            if (offset > 0) {
-                connection.setRequestProperty("Range", "bytes=" + offset + "-");
-            }
-            if (timeout > 0) {
-                connection.setConnectTimeout(timeout);
-                connection.setReadTimeout(timeout);
-            }
-            int code = connection.getResponseCode();
-            redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER;
-            if (redirected) {
-                url = connection.getHeaderField("Location");
-                redirectCount++;
-                connection.disconnect();
-            }
-            if (redirectCount > MAX_REDIRECTS) {
-                throw new ProxyCacheException("Too many redirects: " + redirectCount);
-            }
-        } while (redirected);
-        return connection;
+    /**
+     * Returns {@code true} if length of source is known, so {@link #length()} doesn't request source.
+     */
+    public synchronized boolean isLengthKnown() {
+        return sourceInfo.length != Long.MIN_VALUE;
     }
 
+    /**
+     * Returns mime type of source. Source is requested only if nothing is known about it: if length is known
+     * (e.g. source info is stored) but mime is empty, origin doesn't provide it and mime is guessed by url.
+     */
     public synchronized String getMime() throws ProxyCacheException {
-        if (TextUtils.isEmpty(sourceInfo.mime)) {
+        if (TextUtils.isEmpty(sourceInfo.mime) && !isLengthKnown()) {
             fetchContentInfo();
         }
-        return sourceInfo.mime;
+        return getKnownMime();
+    }
+
+    /**
+     * Returns mime type of source known without requesting source: stored or received with last response,
+     * or guessed by url. Can be {@code null}.
+     */
+    public synchronized String getKnownMime() {
+        return TextUtils.isEmpty(sourceInfo.mime) ? ProxyCacheUtils.getSupposablyMime(sourceInfo.url) : sourceInfo.mime;
+    }
+
+    /**
+     * Requests info of source (length, mime, validator) again and stores it.
+     * Is used to check in background that source cached before hasn't changed.
+     *
+     * @return {@code true} if source has changed: validator or length doesn't match known ones.
+     * @throws ProxyCacheException if error occurs while requesting source.
+     */
+    public synchronized boolean revalidate() throws ProxyCacheException {
+        SourceInfo knownInfo = sourceInfo;
+        fetchContentInfo();
+        boolean lengthChanged = knownInfo.length >= 0 && sourceInfo.length >= 0 && knownInfo.length != sourceInfo.length;
+        return lengthChanged || isChanged(knownInfo.validator, sourceInfo.validator);
+    }
+
+    /**
+     * Takes info of source received by another source of the same url, e.g. by copy opened for range request.
+     */
+    synchronized void setSourceInfo(HttpUrlSource source) {
+        this.sourceInfo = source.sourceInfo;
     }
 
     public String getUrl() {
@@ -0,0 +1,128 @@
+package com.danikula.videocache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Readers waiting for data of {@link ProxyCache}, ordered by offset they need.
+ * <p/>
+ * Every waiter is woken exactly once: when bytes it needs become available or when source reading is finished
+ * (successfully or not) or stopped. There is no timed polling and appending data wakes only readers whose data
+ * has arrived, so many clients of one url don't wake each other up on every chunk.
+ *
+ * 按需要的偏移量排序的等待队列，数据到达时只唤醒需要这部分数据的读者
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class OffsetWaiters {
+
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private long available;
+    private int generation;
+
+    /**
+     * Returns current generation of waiters. Generation is changed by {@link #signalAll()}, it should be read
+     * <b>before</b> checking state of source and cache to not miss signal sent between check and {@link #await(long, int)}.
+     *
+     * @return current generation.
+     */
+    synchronized int generation() {
+        return generation;
+    }
+
+    /**
+     * Blocks current thread until {@code offset} bytes are available or {@link #signalAll()} is called after
+     * {@code generation} was obtained.
+     *
+     * @param offset     required count of available bytes.
+     * @param generation generation obtained by {@link #generation()} before checking state.
+     * @throws InterruptedException if thread is interrupted while waiting.
+     */
+    void await(long offset, int generation) throws InterruptedException {
+        Waiter waiter;
+        synchronized (this) {
+            if (offset <= available || generation != this.generation) {
+                return;
+            }
+            waiter = new Waiter(offset);
+            waiters.add(waiter);
+        }
+        try {
+            waiter.await();
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                waiters.remove(waiter);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Wakes readers that wait for no more than {@code available} bytes.
+     *
+     * @param available count of bytes available now.
+     */
+    void signalAvailable(long available) {
+        List<Waiter> ready = new ArrayList<>();
+        synchronized (this) {
+            this.available = Math.max(this.available, available);
+            while (!waiters.isEmpty() && waiters.peek().offset <= this.available) {
+                ready.add(waiters.poll());
+            }
+        }
+        signal(ready);
+    }
+
+    /**
+     * Forgets count of available bytes, e.g. when cached data is discarded. Readers waiting now stay in queue and are
+     * woken when their bytes are downloaded again.
+     */
+    synchronized void reset() {
+        available = 0;
+    }
+
+    /**
+     * Wakes all readers, e.g. when source reading is finished or failed.
+     */
+    void signalAll() {
+        List<Waiter> all;
+        synchronized (this) {
+            generation++;
+            all = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        signal(all);
+    }
+
+    private void signal(List<Waiter> waiters) {
+        for (Waiter waiter : waiters) {
+            waiter.signal();
+        }
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+
+        private final long offset;
+        private boolean signaled;
+
+        Waiter(long offset) {
+            this.offset = offset;
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (!signaled) {
+                wait();
+            }
+        }
+
+        synchronized void signal() {
+            signaled = true;
+            notify();
+        }
+
+        @Override
+        public int compareTo(Waiter another) {
+            return offset < another.offset ? -1 : (offset == another.offset ? 0 : 1);
+        }
+    }
+}
@@ -2,8 +2,13 @@ package com.danikula.videocache;
 
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.danikula.videocache.Preconditions.checkArgument;
 import static com.danikula.videocache.Preconditions.checkNotNull;
 import static com.danikula.videocache.ProxyCacheUtils.LOG_TAG;
 
@@ -24,21 +29,67 @@ class ProxyCache {
      * source和cache这两个变量最重要，指定了数据源和缓存
      */
     private static final int MAX_READ_SOURCE_ATTEMPTS = 1;
+    /**
+     * Default count of attempts to resume reading source after network error before error is reported to readers.
+     */
+    static final int DEFAULT_MAX_SOURCE_RETRIES = 3;
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 500;
+    private static final long MAX_RETRY_DELAY_MILLIS = 8000;
+    private static final long READ_RATE_SAMPLE_INTERVAL_MILLIS = 1000;
 
     private final Source source;
     private final Cache cache;
-    //
-    private final Object wc = new Object();
+    //执行读取数据源任务的调度器，限制同时下载的数量
+    private final DownloadScheduler downloadScheduler;
+    //等待数据的读者，按需要的偏移量排序
+    private final OffsetWaiters waiters = new OffsetWaiters();
     //缓存结束的锁
     private final Object stopLock = new Object();
     private final AtomicInteger readSourceErrorsCount;
-    private volatile Thread sourceReaderThread;
+    //网络错误后从缓存结束的位置重新打开数据源的最大次数
+    private final int maxSourceRetries;
+    //缓存超过客户端读取位置多远时暂停下载
+    private final ReadAheadPolicy readAheadPolicy;
+    private final Object readRateLock = new Object();
+    //正在执行的读取数据源的任务，分段下载时有多个
+    private final List<Future<?>> sourceReaderTasks = new ArrayList<>();
+    private int activeReaders;
+    //客户端当前读取的位置，分段下载时优先下载这个位置之后的数据
+    private volatile long readPosition;
+    //客户端读到的最远位置，预读窗口从这里开始计算
+    private volatile long furthestReadOffset;
+    //客户端每秒读取的字节数，按秒采样后平滑
+    private volatile long readRate;
+    private long readRateSampleTime;
+    private long readRateSampleOffset;
+    //缓存已经超过客户端足够远，下载暂停
+    private volatile boolean paused;
+    private volatile long sourceLength = -1;
+    //数据源至少被成功打开过一次，源的信息（长度、类型）已经从数据连接的响应中获得
+    private volatile boolean sourceOpened;
     private volatile boolean stopped;
     private volatile int percentsAvailable = -1;
 
     public ProxyCache(Source source, Cache cache) {
+        this(source, cache, DownloadScheduler.getDefault());
+    }
+
+    public ProxyCache(Source source, Cache cache, DownloadScheduler downloadScheduler) {
+        this(source, cache, downloadScheduler, DEFAULT_MAX_SOURCE_RETRIES);
+    }
+
+    public ProxyCache(Source source, Cache cache, DownloadScheduler downloadScheduler, int maxSourceRetries) {
+        this(source, cache, downloadScheduler, maxSourceRetries, ReadAheadPolicy.unlimited());
+    }
+
+    public ProxyCache(Source source, Cache cache, DownloadScheduler downloadScheduler, int maxSourceRetries,
+                      ReadAheadPolicy readAheadPolicy) {
+        checkArgument(maxSourceRetries >= 0, "Source retries count can't be negative!");
         this.source = checkNotNull(source);
         this.cache = checkNotNull(cache);
+        this.downloadScheduler = checkNotNull(downloadScheduler);
+        this.maxSourceRetries = maxSourceRetries;
+        this.readAheadPolicy = checkNotNull(readAheadPolicy);
         //初始化读取数据错误的次数
         this.readSourceErrorsCount = new AtomicInteger();
     }
@@ -47,23 +98,120 @@ class ProxyCache {
         //断言缓存，用于验证
         ProxyCacheUtils.assertBuffer(buffer, offset, length);
 
-        //如果缓存未完成而且尚未停止，可获得的字节数小于偏移量+长度
-        while (!cache.isCompleted() && cache.available() < (offset + length) && !stopped) {
+        long requiredOffset = offset + length;
+        readPosition = offset;
+        //等待中的读者需要的数据也在预读窗口之内
+        onClientRead(requiredOffset);
+        while (true) {
+            //先取得等待的代数再检查状态，这样检查之后发出的信号不会丢失
+            int generation = waiters.generation();
+            //如果缓存未完成而且尚未停止，可获得的字节数小于偏移量+长度
+            if (cache.isCompleted() || cache.available() >= requiredOffset || stopped) {
+                break;
+            }
             //异步的从源读取数据;
             readSourceAsync();
             //等待源数据
-            waitForSourceData();
+            waitForSourceData(requiredOffset, generation);
             //检查读取源数据错误的次数
             checkReadSourceErrorsCount();
         }
         //出循环表示所要求的内容是缓存好的，那么直接从缓存中取到buffer就好了
         int read = cache.read(buffer, offset, length);
         //如果缓存完成，可以获得的内容是全部的话，记录可获得的状态为100
-        if (cache.isCompleted() && percentsAvailable != 100) {
+        if (cache.isCompleted()) {
+            onCacheCompleted();
+        } else if (read > 0) {
+            resumeReadAheadIfNeeded();
+        }
+        return read;
+    }
+
+    //更新客户端读到的最远位置，每秒最多采样一次读取速度
+    private void onClientRead(long position) {
+        synchronized (readRateLock) {
+            if (position > furthestReadOffset) {
+                furthestReadOffset = position;
+            }
+            long now = System.currentTimeMillis();
+            long elapsed = now - readRateSampleTime;
+            if (readRateSampleTime == 0) {
+                readRateSampleTime = now;
+                readRateSampleOffset = furthestReadOffset;
+            } else if (elapsed >= READ_RATE_SAMPLE_INTERVAL_MILLIS) {
+                long rate = (furthestReadOffset - readRateSampleOffset) * 1000 / elapsed;
+                readRate = readRate == 0 ? rate : (readRate * 3 + rate) / 4;
+                readRateSampleTime = now;
+                readRateSampleOffset = furthestReadOffset;
+            }
+        }
+    }
+
+    //下载暂停后，客户端读完一半预读窗口时提前继续下载，不等到缓存的数据被读完
+    private void resumeReadAheadIfNeeded() throws ProxyCacheException {
+        if (paused && cache.available() - furthestReadOffset < getReadAheadWindow() / 2) {
+            readSourceAsync();
+        }
+    }
+
+    private long getReadAheadWindow() {
+        return readAheadPolicy.getWindow(readRate);
+    }
+
+    //缓存超过客户端读取位置一个预读窗口时应该暂停下载
+    private boolean isReadAheadExceeded(long available) {
+        return !readAheadPolicy.isUnlimited() && available - furthestReadOffset > getReadAheadWindow();
+    }
+
+    //分段下载时不领取从这个位置开始的块
+    private long getReadAheadLimit() {
+        if (readAheadPolicy.isUnlimited()) {
+            return Long.MAX_VALUE;
+        }
+        long window = getReadAheadWindow();
+        long offset = furthestReadOffset;
+        return window > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + window;
+    }
+
+    /**
+     * Returns snapshot of downloading progress: cached bytes, furthest offset read by clients, estimated read rate
+     * and whether downloading is paused by {@link ReadAheadPolicy}.
+     *
+     * @return progress of downloading source.
+     * @throws ProxyCacheException if error occurs while checking cache.
+     */
+    DownloadProgress getDownloadProgress() throws ProxyCacheException {
+        boolean completed = cache.isCompleted();
+        long cached = cache.available();
+        long length = completed ? cached : sourceLength;
+        return new DownloadProgress(cached, length, furthestReadOffset, readRate, paused && !completed, completed);
+    }
+
+    /**
+     * Starts reading source if it is not started yet and blocks until source is opened, so source info (length, mime)
+     * is taken from response of the same connection that fills cache instead of separate request.
+     * Returns immediately if cache is completed or source has been opened before.
+     *
+     * @throws ProxyCacheException if source can't be opened.
+     */
+    protected final void waitForSourceOpened() throws ProxyCacheException {
+        while (true) {
+            int generation = waiters.generation();
+            if (sourceOpened || cache.isCompleted() || stopped) {
+                break;
+            }
+            readSourceAsync();
+            //数据源打开后会唤醒所有读者，这里不等待任何数据
+            waitForSourceData(Long.MAX_VALUE, generation);
+            checkReadSourceErrorsCount();
+        }
+    }
+
+    protected final void onCacheCompleted() {
+        if (percentsAvailable != 100) {
             percentsAvailable = 100;
             onCachePercentsAvailableChanged(100);
         }
-        return read;
     }
 
     private void checkReadSourceErrorsCount() throws ProxyCacheException {
@@ -75,46 +223,76 @@ class ProxyCache {
         }
     }
 
-    //关闭缓存，如果读数据线程未结束，那么中断线程
+    //关闭缓存，如果读数据任务未结束，那么取消任务（正在执行的任务会被中断）
     public void shutdown() {
         synchronized (stopLock) {
             Log.d(LOG_TAG, "Shutdown proxy for " + source);
             try {
                 stopped = true;
-                if (sourceReaderThread != null) {
-                    sourceReaderThread.interrupt();
-                }
+                cancelSourceReaders();
                 cache.close();
             } catch (ProxyCacheException e) {
                 onError(e);
+            } finally {
+                waiters.signalAll();
             }
         }
     }
 
+    private synchronized void cancelSourceReaders() {
+        for (Future<?> sourceReaderTask : sourceReaderTasks) {
+            sourceReaderTask.cancel(true);
+        }
+        sourceReaderTasks.clear();
+    }
+
     /**
-     * 异步获取数据源
+     * 异步获取数据源，支持分段下载时同时启动多个按块下载的任务，否则启动一个顺序读取的任务
      * @throws ProxyCacheException
      */
     private synchronized void readSourceAsync() throws ProxyCacheException {
-        boolean readingInProgress = sourceReaderThread != null && sourceReaderThread.getState() != Thread.State.TERMINATED;
-        if (!stopped && !cache.isCompleted() && !readingInProgress) {
-            //启动读取数据源的线程
-            sourceReaderThread = new Thread(new SourceReaderRunnable(), "Source reader for " + source);
-            sourceReaderThread.start();
+        if (!stopped && !cache.isCompleted() && activeReaders == 0) {
+            paused = false;
+            sourceReaderTasks.clear();
+            SegmentedDownload segmentedDownload = getSegmentedDownload();
+            //把读取数据源的任务交给调度器，没有空闲的下载名额时任务在队列中等待
+            if (segmentedDownload == null) {
+                activeReaders = 1;
+                sourceReaderTasks.add(downloadScheduler.submit(new SourceReaderRunnable()));
+            } else {
+                activeReaders = segmentedDownload.getConnections();
+                for (int i = 0; i < activeReaders; i++) {
+                    sourceReaderTasks.add(downloadScheduler.submit(new SegmentReaderRunnable(segmentedDownload)));
+                }
+            }
         }
     }
 
+    //读取结束的标志必须在唤醒所有读者之前清除，被唤醒的读者才能重新启动读取
+    private synchronized void onSourceReadFinished() {
+        activeReaders--;
+    }
+
+    /**
+     * Returns plan of downloading source by several range connections at the same time or {@code null}
+     * if source should be read sequentially by single connection. Called every time reading of source is started.
+     *
+     * @return segmented download or {@code null}.
+     * @throws ProxyCacheException if error occurs while checking source.
+     */
+    SegmentedDownload getSegmentedDownload() throws ProxyCacheException {
+        return null;
+    }
+
     /**
-     * 当前线程阻塞1s,用来等待数据源
+     * 阻塞当前线程，直到需要的数据到达，或者数据源读取结束、出错、缓存被关闭
      * @throws ProxyCacheException
      */
-    private void waitForSourceData() throws ProxyCacheException {
-        synchronized (wc) {
-            try {
-                wc.wait(1000);
-            } catch (InterruptedException e) {
-                throw new ProxyCacheException("Waiting source data is interrupted!", e);
-            }
+    private void waitForSourceData(long requiredOffset, int generation) throws ProxyCacheException {
+        try {
+            waiters.await(requiredOffset, generation);
+        } catch (InterruptedException e) {
+            throw new ProxyCacheException("Waiting source data is interrupted!", e);
         }
     }
 
@@ -124,12 +302,11 @@ class ProxyCache {
      * @param sourceAvailable 文件的总长度
      */
     private void notifyNewCacheDataAvailable(long cacheAvailable, long sourceAvailable) {
+        sourceLength = sourceAvailable;
         onCacheAvailable(cacheAvailable, sourceAvailable);
 
-        //唤醒所有因为数据源不足而阻塞的线程
-        synchronized (wc) {
-            wc.notifyAll();
-        }
+        //只唤醒需要的数据已经到达的读者
+        waiters.signalAvailable(cacheAvailable);
     }
 
     protected void onCacheAvailable(long cacheAvailable, long sourceLength) {
@@ -147,43 +324,202 @@ class ProxyCache {
     }
 
     /**
-     * 从数据源读取数据的方法
+     * 从数据源读取数据的方法。网络错误（连接断开、读取停滞）时等待一段时间（每次加倍）后从缓存结束的位置重新打开数据源，
+     * 等待数据的读者不会收到错误；读到数据后重试次数重新计算
      */
     private void readSource() {
-        int sourceAvailable = -1;
-        int offset = 0;
+        long sourceAvailable = -1;
+        long offset = 0;
+        int retries = 0;
+        //定义一个新的buffer
+        byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+        try {
+            while (true) {
+                try {
+                    //偏移量为缓存已经有的数据的长度
+                    offset = cache.available();
+                    //数据源从偏移量的位置打开
+                    source.open(offset);
+                    //sourceAvailable为source的长度
+                    sourceAvailable = source.length();
+                    if (!sourceOpened) {
+                        sourceOpened = true;
+                        //唤醒等待源信息的请求
+                        waiters.signalAll();
+                    }
+                    int readBytes;
+                    //未读完,读取数据到buffer中
+                    while ((readBytes = source.read(buffer)) != -1) {
+                        long available;
+                        synchronized (stopLock) {
+                            if (isStopped()) {
+                                return;
+                            }
+                            //将buffer的数据加到cache中
+                            cache.append(buffer, readBytes);
+                            available = cache.available();
+                        }
+                        retries = 0;
+                        //偏移量增加了readBytes的长度
+                        offset += readBytes;
+                        //通知有新的缓存数据可以获取
+                        notifyNewCacheDataAvailable(available, sourceAvailable);
+                        if (isReadAheadExceeded(available)) {
+                            //缓存已经超过客户端足够远，暂停下载并释放下载名额，客户端读近时从缓存结束的位置重新打开
+                            paused = true;
+                            Log.d(LOG_TAG, "Pause reading " + source + " at " + available + ", client reads at " + furthestReadOffset);
+                            return;
+                        }
+                        if (available != offset) {
+                            //前缀和之后已经缓存的区间连在了一起，后面的数据不用再下载，读者需要时会从新的位置重新打开数据源
+                            offset = available;
+                            break;
+                        }
+                    }
+                    tryComplete();
+                    return;
+                } catch (ProxyCacheException e) {
+                    closeSource();
+                    retries = checkRetry(e, retries);
+                }
+            }
+        } catch (Throwable e) {
+            onReadSourceError(e);
+        } finally {
+            closeSource();
+            onCacheAvailable(offset, sourceAvailable);
+            onSourceReadFinished();
+            //读取结束（完成、出错或停止），唤醒所有读者重新检查状态
+            waiters.signalAll();
+        }
+    }
+
+    /**
+     * 判断读取错误是否可以重试：只有网络错误可以重试，中断、源变化、错误的响应不重试。
+     * 可以重试时等待一段时间后返回新的重试次数，否则抛出这个错误
+     */
+    private int checkRetry(ProxyCacheException e, int retries) throws ProxyCacheException {
+        boolean networkError = e.getCause() instanceof IOException;
+        boolean retryable = networkError && !(e instanceof InterruptedProxyCacheException) && !(e instanceof SourceChangedException);
+        if (isStopped() || !retryable || retries >= maxSourceRetries) {
+            throw e;
+        }
+        long delay = Math.min(INITIAL_RETRY_DELAY_MILLIS << retries, MAX_RETRY_DELAY_MILLIS);
+        Log.w(LOG_TAG, "Error reading " + source + ", resume in " + delay + " ms (attempt " + (retries + 1) + ")", e);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            throw new InterruptedProxyCacheException("Resuming source is interrupted", ie);
+        }
+        return retries + 1;
+    }
+
+    private void onReadSourceError(Throwable e) {
+        if (e instanceof SourceChangedException) {
+            //源已经变化，已缓存的数据不能和新的数据拼在一起，丢弃缓存
+            discardChangedSource();
+        }
+        readSourceErrorsCount.incrementAndGet();
+        onError(e);
+    }
+
+    /**
+     * Is called when change of source is detected outside of source readers, e.g. by connection opened for range
+     * requested by client. Source readers are stopped, because they may still write bytes of old object, and cached
+     * data is dropped like in case of change detected by source reader. Readers are started again by next read.
+     */
+    final void onSourceChangedOutsideReaders() {
+        cancelSourceReaders();
+        discardChangedSource();
+    }
+
+    private void discardChangedSource() {
+        synchronized (stopLock) {
+            try {
+                if (!isStopped()) {
+                    onSourceChanged();
+                    //缓存已经清空，之前到达的偏移量不再可用
+                    waiters.reset();
+                }
+            } catch (ProxyCacheException discardError) {
+                onError(discardError);
+            }
+        }
+    }
+
+    /**
+     * Called when origin object is changed since cached data was downloaded. Cached data must be dropped,
+     * so bytes of different objects are never stitched together. Called under lock that prevents closing cache.
+     *
+     * @throws ProxyCacheException if error occurs while dropping cached data.
+     */
+    void onSourceChanged() throws ProxyCacheException {
+    }
+
+    /**
+     * 分段下载：按读取位置的优先级不断领取没有缓存的块，用Range请求下载后写到缓存对应的位置，
+     * 所有块都下载完时完成缓存
+     */
+    private void readSegments(SegmentedDownload segmentedDownload) {
+        long sourceAvailable = -1;
         try {
-            //偏移量为缓存已经有的数据的长度
-            offset = cache.available();
-            //数据源从偏移量的位置打开
-            source.open(offset);
-            //sourceAvailable为source的长度
             sourceAvailable = source.length();
-            //定义一个新的buffer
             byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
-            //
+            int retries = 0;
+            SegmentedDownload.Chunk chunk;
+            while (!isStopped() && (chunk = segmentedDownload.take(readPosition, getReadAheadLimit())) != null) {
+                try {
+                    readChunk(segmentedDownload, chunk, buffer, sourceAvailable);
+                    retries = 0;
+                } catch (ProxyCacheException e) {
+                    //块中没有下载的部分在下一次领取时从断开的位置继续下载
+                    retries = checkRetry(e, retries);
+                } finally {
+                    segmentedDownload.release(chunk);
+                }
+            }
+            //其他任务可能还在下载最后的块，只有所有数据都缓存了才能完成
+            synchronized (stopLock) {
+                if (isStopped() || segmentedDownload.isCancelled()) {
+                    return;
+                }
+                if (cache.available() >= sourceAvailable) {
+                    cache.complete();
+                } else if (!readAheadPolicy.isUnlimited()) {
+                    //预读窗口内的块都下载了，窗口之外的块等客户端读近时再下载
+                    paused = true;
+                }
+            }
+        } catch (Throwable e) {
+            onReadSourceError(e);
+        } finally {
+            onSourceReadFinished();
+            //有一个任务结束（完成、出错或停止），唤醒所有读者重新检查状态
+            waiters.signalAll();
+        }
+    }
+
+    private void readChunk(SegmentedDownload segmentedDownload, SegmentedDownload.Chunk chunk, byte[] buffer,
+                           long sourceAvailable) throws ProxyCacheException {
+        Source chunkSource = segmentedDownload.open(chunk);
+        try {
+            long offset = chunk.offset;
             int readBytes;
-            //未读完,读取数据到buffer中
-            while ((readBytes = source.read(buffer)) != -1) {
+            while (offset < chunk.end && (readBytes = chunkSource.read(buffer)) != -1) {
+                int writeBytes = (int) Math.min(readBytes, chunk.end - offset);
+                long available;
                 synchronized (stopLock) {
-                    if (isStopped()) {
+                    //计划作废时缓存已经丢弃，旧版本的数据不能写入
+                    if (isStopped() || segmentedDownload.isCancelled()) {
                         return;
                     }
-                    //将buffer的数据加到cache中
-                    cache.append(buffer, readBytes);
+                    available = segmentedDownload.write(buffer, offset, writeBytes);
                 }
-                //偏移量增加了readBytes的长度
-                offset += readBytes;
-                //通知有新的缓存数据可以获取
-                notifyNewCacheDataAvailable(offset, sourceAvailable);
+                offset += writeBytes;
+                notifyNewCacheDataAvailable(available, sourceAvailable);
             }
-            tryComplete();
-        } catch (Throwable e) {
-            readSourceErrorsCount.incrementAndGet();
-            onError(e);
         } finally {
-            closeSource();
-            notifyNewCacheDataAvailable(offset, sourceAvailable);
+            chunkSource.close();
         }
     }
 
@@ -223,7 +559,7 @@ class ProxyCache {
         }
     }
 
-    //读取源数据的线程，run方法为readSource
+    //读取源数据的任务，run方法为readSource
     private class SourceReaderRunnable implements Runnable {
 
         @Override
@@ -231,4 +567,19 @@ class ProxyCache {
             readSource();
         }
     }
+
+    //分段下载的任务，每个任务使用一个Range连接
+    private class SegmentReaderRunnable implements Runnable {
+
+        private final SegmentedDownload segmentedDownload;
+
+        SegmentReaderRunnable(SegmentedDownload segmentedDownload) {
+            this.segmentedDownload = segmentedDownload;
+        }
+
+        @Override
+        public void run() {
+            readSegments(segmentedDownload);
+        }
+    }
 }
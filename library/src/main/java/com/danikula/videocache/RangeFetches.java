@@ -0,0 +1,115 @@
+package com.danikula.videocache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registry of ranges of single source that are downloaded right now for clients reading far from cached prefix.
+ * <p/>
+ * Every client that needs range missing in cache first checks whether another client is already downloading it
+ * (or is going to reach it within {@link #JOIN_DISTANCE} bytes). In this case client doesn't open own connection
+ * to origin, it waits until data is written to sparse cache by that download and reads it from cache. So several
+ * players opened for the same url at the same offset (autoplay in feed, parallel range probes) share single
+ * origin stream instead of downloading the same bytes several times.
+ *
+ * 同一个源正在下载的区间：客户端需要的数据正在被另一个客户端下载时，等待数据写到缓存后从缓存读取，不重复请求源
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class RangeFetches {
+
+    /**
+     * Max distance in bytes between current position of download and offset client needs to join download
+     * instead of opening own connection.
+     */
+    static final long JOIN_DISTANCE = 512 * 1024;
+
+    private final List<Fetch> fetches = new ArrayList<>();
+
+    /**
+     * Registers download of range {@code [offset, end)} by calling thread.
+     *
+     * @return registered download that must be {@link #finish(Fetch) finished} after reading or {@code null}
+     * if {@code offset} is being downloaded by another client, see {@link #await(long)}.
+     */
+    synchronized Fetch start(long offset, long end) {
+        if (findCovering(offset) != null) {
+            return null;
+        }
+        Fetch fetch = new Fetch(offset, end);
+        fetches.add(fetch);
+        return fetch;
+    }
+
+    /**
+     * Moves position of download after bytes are written to cache and wakes up clients waiting for them.
+     */
+    synchronized void onWritten(Fetch fetch, long position) {
+        fetch.position = position;
+        notifyAll();
+    }
+
+    /**
+     * Unregisters download (completed or failed) and wakes up clients waiting for it.
+     */
+    synchronized void finish(Fetch fetch) {
+        fetches.remove(fetch);
+        fetch.finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until byte at {@code offset} is written to cache by download of another client or that download is
+     * finished without reaching {@code offset}. Returns immediately if nobody downloads {@code offset}.
+     *
+     * @throws ProxyCacheException if waiting is interrupted.
+     */
+    synchronized void await(long offset) throws ProxyCacheException {
+        Fetch fetch = findCovering(offset);
+        try {
+            while (fetch != null && !fetch.finished && fetch.position <= offset) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedProxyCacheException("Waiting range " + offset + " is interrupted", e);
+        }
+    }
+
+    /**
+     * Returns count of ranges downloaded right now.
+     */
+    synchronized int getActiveFetches() {
+        return fetches.size();
+    }
+
+    //正在下载的区间包含这个位置，而且下载马上就会到达这个位置
+    private Fetch findCovering(long offset) {
+        for (Fetch fetch : fetches) {
+            if (fetch.offset <= offset && offset < fetch.end && offset - fetch.position < JOIN_DISTANCE) {
+                return fetch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Range {@code [offset, end)} downloaded by single client, bytes before {@code position} are already cached.
+     */
+    static final class Fetch {
+
+        final long offset;
+        final long end;
+        private long position;
+        private boolean finished;
+
+        Fetch(long offset, long end) {
+            this.offset = offset;
+            this.end = end;
+            this.position = offset;
+        }
+
+        @Override
+        public String toString() {
+            return "Fetch{range=[" + offset + ", " + end + "), position=" + position + "}";
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+
+/**
+ * Policy that limits how far downloading of source may go ahead of clients.
+ * <p/>
+ * Source is downloaded until cached data is {@link #getWindow(long) window} bytes ahead of furthest offset read by
+ * clients, then downloading is paused and its slot of {@link DownloadScheduler} is freed. Downloading is resumed when
+ * clients read half of window, so videos abandoned after a few seconds don't waste traffic and disk.
+ * <p/>
+ * By default source is downloaded till the end ({@link #unlimited()}), see
+ * {@link HttpProxyCacheServer.Builder#readAheadPolicy(ReadAheadPolicy)}.
+ *
+ * 预读策略：缓存超过客户端读取位置一个窗口时暂停下载，客户端读到窗口一半时继续下载
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public final class ReadAheadPolicy {
+
+    private static final ReadAheadPolicy UNLIMITED = new ReadAheadPolicy(Long.MAX_VALUE, 0);
+
+    private final long minBytes;
+    private final int seconds;
+
+    private ReadAheadPolicy(long minBytes, int seconds) {
+        this.minBytes = minBytes;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Returns policy that downloads source till the end no matter where clients read.
+     */
+    public static ReadAheadPolicy unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Returns policy that keeps at most {@code bytes} downloaded ahead of furthest client.
+     *
+     * @param bytes size of window in bytes, must be positive.
+     * @return read ahead policy.
+     */
+    public static ReadAheadPolicy bytesAhead(long bytes) {
+        checkArgument(bytes > 0, "Read ahead window must be positive number!");
+        return new ReadAheadPolicy(bytes, 0);
+    }
+
+    /**
+     * Returns policy that keeps downloaded about {@code seconds} of playback ahead of furthest client.
+     * Playback rate is estimated by speed clients read data with, window is never less than {@code minBytes},
+     * so clients that just started reading and have no estimated rate yet are not starved.
+     *
+     * @param seconds  estimated seconds of playback to be downloaded ahead, must be positive.
+     * @param minBytes min size of window in bytes, must be positive.
+     * @return read ahead policy.
+     */
+    public static ReadAheadPolicy secondsAhead(int seconds, long minBytes) {
+        checkArgument(seconds > 0, "Read ahead seconds must be positive number!");
+        checkArgument(minBytes > 0, "Read ahead window must be positive number!");
+        return new ReadAheadPolicy(minBytes, seconds);
+    }
+
+    /**
+     * Returns {@code true} if source is always downloaded till the end.
+     */
+    public boolean isUnlimited() {
+        return minBytes == Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns count of bytes that can be downloaded ahead of furthest client.
+     *
+     * @param readRate estimated count of bytes clients read per second, 0 if unknown.
+     * @return size of window in bytes, {@link Long#MAX_VALUE} for unlimited policy.
+     */
+    public long getWindow(long readRate) {
+        return seconds > 0 ? Math.max(minBytes, readRate * seconds) : minBytes;
+    }
+
+    @Override
+    public String toString() {
+        if (isUnlimited()) {
+            return "ReadAheadPolicy{unlimited}";
+        }
+        return "ReadAheadPolicy{minBytes=" + minBytes + ", seconds=" + seconds + "}";
+    }
+}
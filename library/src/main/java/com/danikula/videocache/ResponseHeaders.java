@@ -0,0 +1,199 @@
+package com.danikula.videocache;
+
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Encoder of response status line and headers.
+ * <p/>
+ * Headers are written as ASCII bytes right into (buffered) output stream of socket: constant lines are encoded
+ * once, numbers are written digit by digit, so no strings are formatted for request. Parts that depend only on
+ * source ('Content-Type' and total length in 'Content-Range') are encoded once per source and reused while
+ * they don't change. Single instance is used for all requests of the same url and is thread-safe.
+ *
+ * 响应头的编码器：直接把ASCII字节写到输出流中，固定的内容只编码一次，同一个源的Content-Type和总长度缓存起来重复使用
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class ResponseHeaders {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String MULTIPART_BOUNDARY = "VIDEO_CACHE_BYTERANGES";
+    private static final byte[] STATUS_OK = ascii("HTTP/1.1 200 OK\n");
+    private static final byte[] STATUS_PARTIAL = ascii("HTTP/1.1 206 PARTIAL CONTENT\n");
+    private static final byte[] STATUS_RANGE_NOT_SATISFIABLE = ascii("HTTP/1.1 416 REQUESTED RANGE NOT SATISFIABLE\n");
+    private static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CONTENT_LENGTH_ZERO = ascii("Content-Length: 0\n");
+    private static final byte[] CONTENT_RANGE = ascii("Content-Range: bytes ");
+    private static final byte[] CONTENT_RANGE_UNSATISFIED = ascii("Content-Range: bytes */");
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] CONTENT_TYPE_MULTIPART = ascii("Content-Type: multipart/byteranges; boundary=" + MULTIPART_BOUNDARY + "\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\n");
+    private static final byte[] PART_DELIMITER = ascii("\r\n--" + MULTIPART_BOUNDARY + "\r\n");
+    private static final byte[] CLOSE_DELIMITER = ascii("\r\n--" + MULTIPART_BOUNDARY + "--\r\n");
+    private static final byte[] LF = ascii("\n");
+    private static final byte[] CRLF = ascii("\r\n");
+
+    //同一个源的Content-Type和Content-Range中的总长度，源的信息变化时重新编码
+    private String mime;
+    private byte[] mimeBytes;
+    private long length = Long.MIN_VALUE;
+    private byte[] lengthBytes;
+
+    /**
+     * Writes headers of response with single body: {@code 200} or {@code 206} with 'Content-Range'
+     * {@code [offset, offset + contentLength)} if length of source is known.
+     *
+     * @param length length of source or negative number if it is unknown.
+     */
+    void write(OutputStream out, boolean partial, long offset, long contentLength, long length, String mime,
+               boolean keepAlive) throws IOException {
+        boolean lengthKnown = length >= 0;
+        out.write(partial ? STATUS_PARTIAL : STATUS_OK);
+        out.write(ACCEPT_RANGES);
+        if (lengthKnown) {
+            out.write(CONTENT_LENGTH);
+            writeDecimal(out, contentLength);
+            out.write(LF);
+        }
+        if (lengthKnown && partial) {
+            out.write(CONTENT_RANGE);
+            writeRange(out, offset, offset + contentLength, length);
+            out.write(LF);
+        }
+        writeContentType(out, mime, LF);
+        writeConnection(out, keepAlive);
+        out.write(LF); // headers end
+    }
+
+    /**
+     * Writes headers of {@code 416} response with empty body.
+     */
+    void writeRangeNotSatisfiable(OutputStream out, long length, boolean keepAlive) throws IOException {
+        out.write(STATUS_RANGE_NOT_SATISFIABLE);
+        out.write(ACCEPT_RANGES);
+        out.write(CONTENT_RANGE_UNSATISFIED);
+        writeDecimal(out, length);
+        out.write(LF);
+        out.write(CONTENT_LENGTH_ZERO);
+        writeConnection(out, keepAlive);
+        out.write(LF); // headers end
+    }
+
+    /**
+     * Writes headers of {@code 206} response with 'multipart/byteranges' body of given length.
+     */
+    void writeMultipart(OutputStream out, long contentLength, boolean keepAlive) throws IOException {
+        out.write(STATUS_PARTIAL);
+        out.write(ACCEPT_RANGES);
+        out.write(CONTENT_LENGTH);
+        writeDecimal(out, contentLength);
+        out.write(LF);
+        out.write(CONTENT_TYPE_MULTIPART);
+        writeConnection(out, keepAlive);
+        out.write(LF); // headers end
+    }
+
+    /**
+     * Writes delimiter and headers of part {@code [start, end)} of 'multipart/byteranges' body.
+     */
+    void writePartHeader(OutputStream out, long start, long end, long length, String mime) throws IOException {
+        out.write(PART_DELIMITER);
+        writeContentType(out, mime, CRLF);
+        out.write(CONTENT_RANGE);
+        writeRange(out, start, end, length);
+        out.write(CRLF);
+        out.write(CRLF);
+    }
+
+    /**
+     * Returns count of bytes written by {@link #writePartHeader(OutputStream, long, long, long, String)}.
+     */
+    int getPartHeaderLength(long start, long end, long length, String mime) {
+        int contentTypeLength = TextUtils.isEmpty(mime) ? 0 : CONTENT_TYPE.length + getMimeBytes(mime).length + CRLF.length;
+        int rangeLength = decimalLength(start) + 1 + decimalLength(end - 1) + getLengthBytes(length).length;
+        return PART_DELIMITER.length + contentTypeLength + CONTENT_RANGE.length + rangeLength + CRLF.length * 2;
+    }
+
+    /**
+     * Writes delimiter that finishes 'multipart/byteranges' body.
+     */
+    void writeCloseDelimiter(OutputStream out) throws IOException {
+        out.write(CLOSE_DELIMITER);
+    }
+
+    int getCloseDelimiterLength() {
+        return CLOSE_DELIMITER.length;
+    }
+
+    // start-last/length
+    private void writeRange(OutputStream out, long start, long end, long length) throws IOException {
+        writeDecimal(out, start);
+        out.write('-');
+        writeDecimal(out, end - 1);
+        out.write(getLengthBytes(length));
+    }
+
+    private void writeContentType(OutputStream out, String mime, byte[] lineEnd) throws IOException {
+        if (!TextUtils.isEmpty(mime)) {
+            out.write(CONTENT_TYPE);
+            out.write(getMimeBytes(mime));
+            out.write(lineEnd);
+        }
+    }
+
+    private void writeConnection(OutputStream out, boolean keepAlive) throws IOException {
+        out.write(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+    }
+
+    private synchronized byte[] getMimeBytes(String mime) {
+        if (!mime.equals(this.mime)) {
+            this.mimeBytes = ascii(mime);
+            this.mime = mime;
+        }
+        return mimeBytes;
+    }
+
+    // '/length' part of Content-Range
+    private synchronized byte[] getLengthBytes(long length) {
+        if (length != this.length) {
+            this.lengthBytes = ascii("/" + length);
+            this.length = length;
+        }
+        return lengthBytes;
+    }
+
+    //逐位写出十进制数，不创建字符串
+    private static void writeDecimal(OutputStream out, long value) throws IOException {
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            out.write((int) ('0' + value / divisor % 10));
+            divisor /= 10;
+        }
+    }
+
+    private static int decimalLength(long value) {
+        int length = value < 0 ? 2 : 1;
+        value = Math.abs(value);
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(ASCII);
+    }
+}
@@ -0,0 +1,175 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.FileCache;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * Plan of downloading single source by several range connections at the same time.
+ * <p/>
+ * Source is split into chunks of {@link #DEFAULT_CHUNK_SIZE} bytes. Every reader of {@link ProxyCache} takes next not
+ * cached chunk, downloads it by separate range request and writes it to sparse {@link FileCache} at its offset.
+ * Chunks are taken starting from the one that contains current read position, so bytes client is going to read
+ * next are downloaded first, chunks before read position are downloaded last.
+ * <p/>
+ * Chunk is taken by single reader only. Chunk that is not downloaded completely (error, stop or cached range in the
+ * middle) is returned to plan and its rest is taken again later.
+ *
+ * 分段下载的计划：文件被切分成固定大小的块，多个读取线程各自用Range请求下载不同的块并写到稀疏缓存的对应位置，
+ * 靠近当前读取位置的块优先下载
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class SegmentedDownload {
+
+    static final long DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final HttpUrlSource source;
+    private final FileCache cache;
+    private final int connections;
+    private final long chunkSize;
+    private final long length;
+    //正在被某个读取线程下载的块
+    private final boolean[] taken;
+    //源变化后计划作废，读取线程不再领取块，也不再写入缓存
+    private volatile boolean cancelled;
+
+    SegmentedDownload(HttpUrlSource source, FileCache cache, int connections) throws ProxyCacheException {
+        this(source, cache, connections, DEFAULT_CHUNK_SIZE);
+    }
+
+    SegmentedDownload(HttpUrlSource source, FileCache cache, int connections, long chunkSize) throws ProxyCacheException {
+        checkArgument(connections > 0, "Connections count must be positive number!");
+        checkArgument(chunkSize > 0, "Chunk size must be positive number!");
+        this.source = checkNotNull(source);
+        this.cache = checkNotNull(cache);
+        this.connections = connections;
+        this.chunkSize = chunkSize;
+        this.length = source.length();
+        checkArgument(length > 0, "Length of source must be known for segmented download!");
+        this.taken = new boolean[(int) ((length + chunkSize - 1) / chunkSize)];
+    }
+
+    /**
+     * Returns count of range connections used to download source at the same time.
+     */
+    int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Takes next not cached range of source that is not downloaded by another reader.
+     *
+     * @param readPosition offset client reads source from, ranges after it get priority.
+     * @param limit        offset chunks starting at or after are not taken (read ahead window),
+     *                     {@link Long#MAX_VALUE} to take all chunks.
+     * @return range to be downloaded or {@code null} if there are no more ranges to download.
+     * @throws ProxyCacheException if error occurs while checking cache.
+     */
+    synchronized Chunk take(long readPosition, long limit) throws ProxyCacheException {
+        if (cancelled) {
+            return null;
+        }
+        int first = (int) Math.min(Math.max(readPosition, 0) / chunkSize, taken.length - 1);
+        for (int i = 0; i < taken.length; i++) {
+            int index = (first + i) % taken.length;
+            if (taken[index] || index * chunkSize >= limit) {
+                continue;
+            }
+            Chunk chunk = notCachedRange(index);
+            if (chunk != null) {
+                taken[index] = true;
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns chunk to plan after reader finished downloading it, successfully or not.
+     *
+     * @param chunk a chunk obtained by {@link #take(long, long)}.
+     */
+    synchronized void release(Chunk chunk) {
+        taken[chunk.index] = false;
+    }
+
+    /**
+     * Cancels plan, e.g. when source is changed and cache is discarded. Readers stop taking chunks and
+     * must not write downloaded bytes to cache.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Opens range connection for chunk. Returned source must be closed after reading.
+     *
+     * @param chunk a chunk obtained by {@link #take(long, long)}.
+     * @return opened source positioned at start of chunk.
+     * @throws ProxyCacheException if source can't be opened.
+     */
+    Source open(Chunk chunk) throws ProxyCacheException {
+        HttpUrlSource rangeSource = new HttpUrlSource(source);
+        try {
+            rangeSource.open(chunk.offset, chunk.end - 1);
+            return rangeSource;
+        } catch (SourceChangedException e) {
+            //新的长度和校验值交给原来的源，重新划分块时使用
+            source.setSourceInfo(rangeSource);
+            rangeSource.close();
+            throw e;
+        } catch (ProxyCacheException | RuntimeException e) {
+            rangeSource.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes downloaded bytes of chunk to cache.
+     *
+     * @return count of bytes cached contiguously from start of file.
+     */
+    long write(byte[] data, long offset, int length) throws ProxyCacheException {
+        cache.write(data, offset, length);
+        return cache.available();
+    }
+
+    //块中第一个没有缓存的区间，到块结束或者下一个已缓存的区间为止
+    private Chunk notCachedRange(int index) throws ProxyCacheException {
+        long chunkStart = index * chunkSize;
+        long chunkEnd = Math.min(chunkStart + chunkSize, length);
+        long offset = chunkStart + cache.cachedLength(chunkStart);
+        if (offset >= chunkEnd) {
+            return null;
+        }
+        long nextCachedOffset = cache.nextCachedOffset(offset);
+        long end = nextCachedOffset < 0 ? chunkEnd : Math.min(chunkEnd, nextCachedOffset);
+        return new Chunk(index, offset, end);
+    }
+
+    /**
+     * Range {@code [offset, end)} of source inside single chunk.
+     */
+    static final class Chunk {
+
+        final int index;
+        final long offset;
+        final long end;
+
+        Chunk(int index, long offset, long end) {
+            this.index = index;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk{index=" + index + ", range=[" + offset + ", " + end + ")}";
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.danikula.videocache;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+import static com.danikula.videocache.ProxyCacheUtils.LOG_TAG;
+
+/**
+ * Non-blocking {@link Selector} based loop that serves connections of proxy server.
+ * <p/>
+ * Single thread accepts connections and reads request headers for all of them, so idle connections and
+ * connections that are still sending request cost no threads. As soon as request is read connection is switched to
+ * blocking mode and handed to {@link RequestProcessor} in bounded worker pool, because response needs blocking work
+ * (reading disk cache and waiting for origin).
+ * <p/>
+ * Response is written by worker thread too, so slow client occupies worker until its response is sent. Worker pool
+ * has no queue: request that comes when all workers are busy gets {@code 503 Service Unavailable} with
+ * {@code Retry-After} at once, instead of waiting in queue behind long responses of other clients.
+ * <p/>
+ * Connections are persistent (HTTP/1.1 keep-alive): if {@link RequestProcessor} reports connection can be reused
+ * it is returned to selector and waits for next request without occupying any thread. Bytes of pipelined requests
+ * read together with previous request are kept in connection's buffer and processed after current response.
+ *
+ * 基于selector的事件循环，单线程负责accept和读取请求头，读完整个请求后才把连接交给有界的工作线程池处理
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class ServerEventLoop implements Runnable {
+
+    private static final int MAX_REQUEST_HEADERS_SIZE = GetRequest.MAX_REQUEST_SIZE;
+    private static final long KEEP_ALIVE_TIMEOUT_MS = 30 * 1000;
+    private static final byte[] SERVICE_UNAVAILABLE_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: 1\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n\r\n").getBytes();
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final RequestProcessor processor;
+    private final List<Connection> readyConnections = new ArrayList<>();
+    private final Queue<Connection> reusedConnections = new ConcurrentLinkedQueue<>();
+    private volatile boolean stopped;
+
+    ServerEventLoop(ServerSocketChannel serverChannel, ExecutorService workers, RequestProcessor processor) throws IOException {
+        this.serverChannel = checkNotNull(serverChannel);
+        this.workers = checkNotNull(workers);
+        this.processor = checkNotNull(processor);
+        this.selector = Selector.open();
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
+                selector.select(KEEP_ALIVE_TIMEOUT_MS);
+                registerReusedConnections();
+                processSelectedKeys();
+                while (!readyConnections.isEmpty()) {
+                    // cancelled keys are deregistered only by next selection operation, channel can't be switched to blocking mode before
+                    selector.selectNow();
+                    dispatchReadyConnections();
+                    processSelectedKeys();
+                }
+                closeIdleConnections();
+            }
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error during waiting connection", e));
+        } finally {
+            closeAll();
+        }
+    }
+
+    void shutdown() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    private void resume(Connection connection) {
+        try {
+            connection.channel.configureBlocking(false);
+            reusedConnections.add(connection);
+            selector.wakeup();
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error reusing connection", e));
+            ProxyCacheUtils.close(connection.channel);
+        }
+    }
+
+    private void registerReusedConnections() {
+        Connection connection;
+        while ((connection = reusedConnections.poll()) != null) {
+            if (stopped) {
+                ProxyCacheUtils.close(connection.channel);
+            } else if (connection.hasRequest()) {
+                readyConnections.add(connection);  // pipelined request is already read
+            } else {
+                try {
+                    connection.touch();
+                    connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    onError(new ProxyCacheException("Error registering reused connection", e));
+                    ProxyCacheUtils.close(connection.channel);
+                }
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (key.isValid() && attachment instanceof Connection && ((Connection) attachment).isIdle(now)) {
+                Log.d(LOG_TAG, "Close idle connection " + ((Connection) attachment).channel.socket());
+                closeConnection(key, (Connection) attachment);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                read(key);
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                Log.d(LOG_TAG, "Accept new socket " + channel.socket());
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+            }
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error accepting connection", e));
+        }
+    }
+
+    private void read(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            int read = connection.channel.read(connection.buffer);
+            if (read == -1) {
+                closeConnection(key, connection);
+                return;
+            }
+            connection.touch();
+            if (connection.hasRequest()) {
+                key.cancel();
+                readyConnections.add(connection);
+            } else if (!connection.buffer.hasRemaining()) {
+                Log.w(LOG_TAG, "Request headers exceed " + MAX_REQUEST_HEADERS_SIZE + " bytes, close connection");
+                closeConnection(key, connection);
+            }
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Closing socket… Socket is closed by client.");
+            closeConnection(key, connection);
+        }
+    }
+
+    private void dispatchReadyConnections() {
+        for (Connection connection : readyConnections) {
+            try {
+                connection.channel.configureBlocking(true);
+                GetRequest request = connection.readRequest();
+                workers.submit(new ProcessRequestRunnable(request, connection));
+            } catch (RejectedExecutionException e) {
+                Log.w(LOG_TAG, "All workers are busy, reject request of " + connection.channel.socket());
+                rejectRequest(connection);
+            } catch (IOException | IllegalArgumentException e) {
+                onError(new ProxyCacheException("Error reading request", e));
+                ProxyCacheUtils.close(connection.channel);
+            }
+        }
+        readyConnections.clear();
+    }
+
+    //通道已经是阻塞模式，响应很短，直接在selector线程中写完
+    private void rejectRequest(Connection connection) {
+        try {
+            connection.channel.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE_RESPONSE));
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error writing 503 response, socket is closed by client");
+        } finally {
+            ProxyCacheUtils.close(connection.channel);
+        }
+    }
+
+    private void closeConnection(SelectionKey key, Connection connection) {
+        key.cancel();
+        ProxyCacheUtils.close(connection.channel);
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ProxyCacheUtils.close(key.channel());
+        }
+        for (Connection connection : readyConnections) {
+            ProxyCacheUtils.close(connection.channel);
+        }
+        readyConnections.clear();
+        for (Connection connection : reusedConnections) {
+            ProxyCacheUtils.close(connection.channel);
+        }
+        reusedConnections.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error closing selector", e));
+        }
+    }
+
+    private void onError(Throwable e) {
+        Log.e(LOG_TAG, "ServerEventLoop error", e);
+    }
+
+    /**
+     * Processes request read by {@link ServerEventLoop}. Is called in worker thread, socket is in blocking mode.
+     */
+    interface RequestProcessor {
+
+        /**
+         * Processes request and writes whole response to socket.
+         *
+         * @param request a request to be processed.
+         * @param socket  a socket response should be written to.
+         * @return {@code true} if socket can be used for next request (response is properly framed and client asked
+         * keep-alive), {@code false} if processor has released socket.
+         */
+        boolean processRequest(GetRequest request, Socket socket);
+    }
+
+    private static final class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_REQUEST_HEADERS_SIZE);
+        private long lastActivityTime;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            touch();
+        }
+
+        void touch() {
+            lastActivityTime = System.currentTimeMillis();
+        }
+
+        boolean isIdle(long now) {
+            return now - lastActivityTime > KEEP_ALIVE_TIMEOUT_MS;
+        }
+
+        boolean hasRequest() {
+            return findRequestEnd() != -1;
+        }
+
+        // request headers are finished by empty line, returns position right after it
+        private int findRequestEnd() {
+            int position = buffer.position();
+            for (int i = 0; i < position; i++) {
+                if (buffer.get(i) != '\n') {
+                    continue;
+                }
+                int next = i + 1;
+                if (next < position && buffer.get(next) == '\r') {
+                    next++;
+                }
+                if (next < position && buffer.get(next) == '\n') {
+                    return next + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Parses first request right in buffer. Bytes of next pipelined requests are left in buffer.
+         */
+        GetRequest readRequest() throws IOException {
+            int requestEnd = findRequestEnd();
+            try {
+                return GetRequest.parse(buffer.array(), 0, requestEnd);
+            } finally {
+                buffer.limit(buffer.position());
+                buffer.position(requestEnd);
+                buffer.compact();
+            }
+        }
+    }
+
+    private final class ProcessRequestRunnable implements Runnable {
+
+        private final GetRequest request;
+        private final Connection connection;
+
+        ProcessRequestRunnable(GetRequest request, Connection connection) {
+            this.request = request;
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            boolean keepAlive = processor.processRequest(request, connection.channel.socket());
+            if (keepAlive) {
+                resume(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.danikula.videocache;
+
+/**
+ * Indicates that origin object is changed since data of cache was downloaded (its ETag or Last-Modified date
+ * doesn't match), so downloading can't be resumed and cached data must be dropped.
+ *
+ * @author Alexey Danilov
+ */
+public class SourceChangedException extends ProxyCacheException {
+
+    public SourceChangedException(String message) {
+        super(message);
+    }
+}
@@ -9,13 +9,20 @@ package com.danikula.videocache;
 public class SourceInfo {
 
     public final String url;
-    public final int length;
+    public final long length;
     public final String mime;
+    //源的校验值（ETag或者Last-Modified），续传时作为If-Range发送，防止把变化后的源的数据拼接到已有的缓存中
+    public final String validator;
 
-    public SourceInfo(String url, int length, String mime) {
+    public SourceInfo(String url, long length, String mime) {
+        this(url, length, mime, null);
+    }
+
+    public SourceInfo(String url, long length, String mime, String validator) {
         this.url = url;
         this.length = length;
         this.mime = mime;
+        this.validator = validator;
     }
 
     @Override
@@ -24,6 +31,7 @@ public class SourceInfo {
                 "url='" + url + '\'' +
                 ", length=" + length +
                 ", mime='" + mime + '\'' +
+                ", validator='" + validator + '\'' +
                 '}';
     }
 }
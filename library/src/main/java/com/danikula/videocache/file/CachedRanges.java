@@ -0,0 +1,141 @@
+package com.danikula.videocache.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sorted set of disjoint byte ranges {@code [start, end)} stored in sparse cache file.
+ * Adjacent and overlapping ranges are merged.
+ * <p/>
+ * Index is persisted to sidecar file as magic, ranges count and pairs of offsets. Persisted index never claims bytes
+ * that are not written yet, at worst it misses bytes written after last saving.
+ *
+ * 稀疏缓存文件中已经缓存的字节区间，区间按起始位置排序且互不相交，相邻或重叠的区间会被合并
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class CachedRanges {
+
+    private static final int MAGIC = 0x56434931; // "VCI1"
+
+    // 区间起始位置 -> 区间结束位置（不包含）
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        Map.Entry<Long, Long> previous = ranges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(start, end);
+    }
+
+    /**
+     * Returns end of range starting at zero offset, i.e. count of bytes cached contiguously from file's start.
+     */
+    long prefixLength() {
+        Long end = ranges.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    /**
+     * Returns count of all cached bytes, i.e. sum of lengths of all ranges.
+     */
+    long cachedBytes() {
+        long cachedBytes = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            cachedBytes += range.getValue() - range.getKey();
+        }
+        return cachedBytes;
+    }
+
+    /**
+     * Returns count of bytes cached contiguously starting at {@code offset} or {@code 0} if byte at offset is not cached.
+     */
+    long cachedLength(long offset) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(offset);
+        return range != null && range.getValue() > offset ? range.getValue() - offset : 0;
+    }
+
+    /**
+     * Returns start of first cached range after {@code offset} or {@code -1} if there is no such range.
+     */
+    long nextCachedOffset(long offset) {
+        Long start = ranges.higherKey(offset);
+        return start == null ? -1 : start;
+    }
+
+    /**
+     * Returns {@code true} if all cached bytes are in single range starting at zero offset (or nothing is cached),
+     * so cache file can be described just by its length.
+     */
+    boolean isContiguous() {
+        return ranges.isEmpty() || (ranges.size() == 1 && ranges.containsKey(0L));
+    }
+
+    /**
+     * Returns {@code true} if ranges would stay contiguous after adding range {@code [start, end)}.
+     */
+    boolean isContiguousWith(long start, long end) {
+        return isContiguous() && (start <= prefixLength() || start >= end);
+    }
+
+    void save(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + ranges.size() * 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(ranges.size());
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            out.writeLong(range.getKey());
+            out.writeLong(range.getValue());
+        }
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            fileOut.write(bytes.toByteArray());
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    static CachedRanges load(File file) throws IOException {
+        CachedRanges cachedRanges = new CachedRanges();
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            int magic = in.readInt();
+            int count = in.readInt();
+            if (magic != MAGIC || count < 0 || file.length() != 8 + count * 16L) {
+                throw new IOException("Index file " + file + " is corrupted");
+            }
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                if (start < 0 || end < start) {
+                    throw new IOException("Index file " + file + " contains wrong range " + start + "-" + end);
+                }
+                cachedRanges.add(start, end);
+            }
+            return cachedRanges;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachedRanges" + ranges;
+    }
+}
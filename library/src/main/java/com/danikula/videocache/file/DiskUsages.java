@@ -0,0 +1,76 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * Utils for work with {@link DiskUsage} implementations.
+ *
+ * 磁盘使用的工具类
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public final class DiskUsages {
+
+    private DiskUsages() {
+    }
+
+    /**
+     * Returns disk usage itself if it implements {@link ManagedDiskUsage}, otherwise wraps it to implementation
+     * that delegates touches (count of cached bytes is ignored), ignores leases and never notifies
+     * eviction listeners.
+     */
+    public static ManagedDiskUsage asManaged(DiskUsage diskUsage) {
+        checkNotNull(diskUsage);
+        return diskUsage instanceof ManagedDiskUsage ? (ManagedDiskUsage) diskUsage : new PlainDiskUsage(diskUsage);
+    }
+
+    //只实现了DiskUsage的自定义实现，不支持租用
+    private static final class PlainDiskUsage implements ManagedDiskUsage {
+
+        private final DiskUsage diskUsage;
+
+        PlainDiskUsage(DiskUsage diskUsage) {
+            this.diskUsage = diskUsage;
+        }
+
+        @Override
+        public void touch(File file) throws IOException {
+            diskUsage.touch(file);
+        }
+
+        @Override
+        public void touch(File file, long cachedBytes) throws IOException {
+            diskUsage.touch(file);
+        }
+
+        @Override
+        public void lease(File file) {
+            // do nothing
+        }
+
+        @Override
+        public void release(File file) {
+            // do nothing
+        }
+
+        @Override
+        public void delete(File file) throws IOException {
+            if (!Files.deleteCacheEntry(file)) {
+                throw new IOException("Error deleting cache file " + file);
+            }
+        }
+
+        //自定义实现的清理不会通知监听器
+        @Override
+        public void registerEvictionListener(EvictionListener listener) {
+            // do nothing
+        }
+
+        @Override
+        public void unregisterEvictionListener(EvictionListener listener) {
+            // do nothing
+        }
+    }
+}
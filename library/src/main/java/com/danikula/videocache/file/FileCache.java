@@ -1,130 +1,383 @@
 package com.danikula.videocache.file;
 
+import android.util.Log;
+
 import com.danikula.videocache.Cache;
 import com.danikula.videocache.ProxyCacheException;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * 文件缓存，实现了缓存接口,这里的设计缓存替换原则与缓存实现分开
  * 并不涉及到如何实现缓存文件删除的逻辑，当内容超过缓存的限制时，由
  * diskUsage接口实现的方法来打扫缓存空间
  * {@link Cache} that uses file for storing data.
+ * <p/>
+ * Not completed cache file is sparse: bytes are stored at their offsets, so any range of source can be cached, not only
+ * prefix. Cached ranges are listed in sidecar index file ({@link #INDEX_POSTFIX}), which is created before first byte is
+ * written outside of prefix. Temp file without index (e.g. created by previous versions) is treated as contiguous prefix.
+ * <p/>
+ * Data is read and written by positional {@link FileChannel} operations, cached length is tracked in memory. Reads
+ * don't take any lock, so many clients read in parallel with each other and with writers. Writers take short lock only
+ * to check and update cached ranges, bytes themselves are written outside of it.
+ * <p/>
+ * Completed file can be read through memory mapping ({@link MappedFile}), see {@link #FileCache(File, DiskUsage, boolean)}.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 public class FileCache implements Cache {
 
-    private static final String TEMP_POSTFIX = ".download";
+    private static final String LOG_TAG = "ProxyCache";
+    static final String TEMP_POSTFIX = ".download";
+    static final String INDEX_POSTFIX = ".index";
+    //索引最多落后这么多字节就要保存一次，进程被杀时最多丢失这么多已缓存的数据
+    private static final long INDEX_SYNC_BYTES = 1024 * 1024;
 
-    private final DiskUsage diskUsage;
-    public File file;
-    private RandomAccessFile dataFile;
+    private final ManagedDiskUsage diskUsage;
+    public volatile File file;
+    private final RandomAccessFile dataFile;
+    //所有读写都使用绝对位置，不改变channel的position，可以并发调用
+    private final FileChannel channel;
+    //保护ranges、索引文件和下面的计数，不在锁中读写文件数据
+    private final Object lock = new Object();
+    //未完成的缓存文件中已经缓存的区间，已完成的文件为null
+    private CachedRanges ranges;
+    private File indexFile;
+    //索引文件是否存在，在锁中判断时不用访问文件系统
+    private boolean indexSaved;
+    private long unsavedBytes;
+    //丢弃数据时增加，丢弃之前开始的写入不再记录到区间中
+    private int generation;
+    //从文件开头连续缓存的长度，已完成时为文件长度；读取时不需要加锁
+    private volatile long available;
+    private volatile boolean completed;
+    //已完成的文件是否通过内存映射读取，映射在第一次读取时获取（与同一个文件的其他使用者共享），关闭缓存时释放
+    private final boolean mapCompleted;
+    private volatile MappedFile mappedFile;
 
     public FileCache(File file) throws ProxyCacheException {
         this(file, new UnlimitedDiskUsage());
     }
 
     public FileCache(File file, DiskUsage diskUsage) throws ProxyCacheException {
+        this(file, diskUsage, false);
+    }
+
+    /**
+     * Creates cache that optionally reads completed file through memory mapping.
+     *
+     * @param mapCompleted {@code true} to map completed file (now or after completion) on first read, so reads become
+     *                     memory copies. Mapping is shared by all clients of this cache and released on {@link #close()}.
+     */
+    public FileCache(File file, DiskUsage diskUsage, boolean mapCompleted) throws ProxyCacheException {
+        this.mapCompleted = mapCompleted;
         try {
             if (diskUsage == null) {
                 throw new NullPointerException();
             }
-            this.diskUsage = diskUsage;
+            this.diskUsage = DiskUsages.asManaged(diskUsage);
             File directory = file.getParentFile();
             //创建目录
             Files.makeDir(directory);
-            //检查文件是否已经缓存完成，若是已完成，则是对应的文件名，未完成时，就保存.download的文件名
-            boolean completed = file.exists();
-            this.file = completed ? file : new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
+            //文件存在时直接使用，否则使用.download的临时文件；不是临时文件则缓存已完成
+            this.file = file.exists() ? file : new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
+            this.completed = !isTempFile(this.file);
             //创建随机读取的文件，若是已完成的只读，未完成的可读写
             this.dataFile = new RandomAccessFile(this.file, completed ? "r" : "rw");
+            this.channel = dataFile.getChannel();
+            if (completed) {
+                this.available = channel.size();
+            } else {
+                this.indexFile = Files.getIndexFile(this.file);
+                this.ranges = loadRanges();
+                this.available = ranges.prefixLength();
+            }
         } catch (IOException e) {
             throw new ProxyCacheException("Error using file " + file + " as disc cache", e);
         }
     }
 
+    //有索引文件时从索引读取已缓存的区间，没有索引的临时文件是从头开始连续缓存的
+    private CachedRanges loadRanges() throws IOException {
+        if (indexFile.exists()) {
+            try {
+                CachedRanges loaded = CachedRanges.load(indexFile);
+                indexSaved = true;
+                return loaded;
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error loading index " + indexFile + ", cached data is dropped", e);
+                channel.truncate(0);
+                Files.delete(indexFile);
+                return new CachedRanges();
+            }
+        }
+        CachedRanges prefix = new CachedRanges();
+        prefix.add(0, channel.size());
+        return prefix;
+    }
+
+    /**
+     * Returns count of bytes cached contiguously from start of file.
+     */
     @Override
-    public synchronized int available() throws ProxyCacheException {
-        try {
-            //返回已缓存的可用数据
-            return (int) dataFile.length();
-        } catch (IOException e) {
-            throw new ProxyCacheException("Error reading length of file " + file, e);
+    public long available() throws ProxyCacheException {
+        return available;
+    }
+
+    /**
+     * Returns count of bytes cached contiguously starting at {@code offset}.
+     *
+     * @param offset an offset in file.
+     * @return count of bytes that can be read from this cache starting at offset, {@code 0} if byte at offset is not cached.
+     * @throws ProxyCacheException if error occurs while reading file length.
+     */
+    public long cachedLength(long offset) throws ProxyCacheException {
+        synchronized (lock) {
+            return completed ? Math.max(0, available - offset) : ranges.cachedLength(offset);
         }
     }
 
+    /**
+     * Returns start of first cached range after {@code offset}.
+     *
+     * @param offset an offset in file.
+     * @return offset of next cached byte after not cached bytes at {@code offset} or {@code -1} if there are no cached bytes after offset.
+     */
+    public long nextCachedOffset(long offset) {
+        synchronized (lock) {
+            return completed ? -1 : ranges.nextCachedOffset(offset);
+        }
+    }
+
+    /**
+     * Reads bytes at offset by single positional read, doesn't block other readers and writers.
+     */
     @Override
-    public synchronized int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
+    public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
         try {
-            //先定位到偏移量，然后从指定的偏移量开始读取length的长度到buffer中
-            dataFile.seek(offset);
-            return dataFile.read(buffer, 0, length);
+            MappedFile mappedFile = getMappedFile();
+            if (mappedFile != null) {
+                return mappedFile.read(buffer, offset, length);
+            }
+            return channel.read(ByteBuffer.wrap(buffer, 0, length), offset);
         } catch (IOException e) {
             String format = "Error reading %d bytes with offset %d from file[%d bytes] to buffer[%d bytes]";
-            throw new ProxyCacheException(String.format(format, length, offset, available(), buffer.length), e);
+            throw new ProxyCacheException(String.format(format, length, offset, available, buffer.length), e);
         }
     }
 
-    @Override
-    public synchronized void append(byte[] data, int length) throws ProxyCacheException {
+    /**
+     * Transfers bytes of completed cache file directly to channel (zero-copy {@link FileChannel#transferTo} if
+     * target is socket channel). Transfer doesn't hold monitor of this cache, so many clients can be served in parallel.
+     *
+     * @param offset position in file to start transfer from.
+     * @param count  max bytes count to be transferred.
+     * @param target a channel to transfer bytes to.
+     * @return count of transferred bytes.
+     * @throws ProxyCacheException if cache is not completed or error occurs while transferring.
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws ProxyCacheException {
+        if (!completed) {
+            throw new ProxyCacheException("Error transferring data: cache file " + file + " is not completed!");
+        }
+        long transferred = 0;
         try {
-            //如果已经完成，不允许添加数据
-            if (isCompleted()) {
-                throw new ProxyCacheException("Error append cache: cache file " + file + " is completed!");
-            }
-            //未完成的情况下，先定位到文件最后的位置，也就是可获得的所有文件长度的位置
-            //然后从data数组中写length长度到datafile中
-            dataFile.seek(available());
-            dataFile.write(data, 0, length);
+            MappedFile mappedFile = getMappedFile();
+            if (mappedFile != null) {
+                return mappedFile.transferTo(offset, count, target);
+            }
+            long end = Math.min(offset + count, available);
+            while (offset + transferred < end) {
+                long position = offset + transferred;
+                transferred += channel.transferTo(position, end - position, target);
+            }
+            return transferred;
         } catch (IOException e) {
-            String format = "Error writing %d bytes to %s from buffer with size %d";
-            throw new ProxyCacheException(String.format(format, length, dataFile, data.length), e);
+            String format = "Error transferring %d bytes with offset %d from file %s";
+            throw new ProxyCacheException(String.format(format, count, offset, file), e);
         }
     }
 
+    //只有已完成的文件才映射，没有打开映射选项时返回null
+    private MappedFile getMappedFile() throws IOException {
+        if (!mapCompleted || !completed) {
+            return null;
+        }
+        MappedFile mapped = mappedFile;
+        if (mapped == null) {
+            synchronized (lock) {
+                if (!channel.isOpen()) {
+                    throw new IOException("Cache file " + file + " is closed");
+                }
+                if (mappedFile == null) {
+                    mappedFile = MappedFile.acquire(file);
+                }
+                mapped = mappedFile;
+            }
+        }
+        return mapped;
+    }
+
     @Override
-    public synchronized void close() throws ProxyCacheException {
+    public void append(byte[] data, int length) throws ProxyCacheException {
+        //如果已经完成，不允许添加数据
+        if (completed) {
+            throw new ProxyCacheException("Error append cache: cache file " + file + " is completed!");
+        }
         try {
-            //datafile关闭
-            dataFile.close();
-            //更新diskUsage接口信息，其中实现diskUsage接口的具体类的TotalSizeLruDiskUsage的touch方法是
-            //修改文件的最后更新时间，处理文件空间，也就是当内容数量或者尺寸超过缓存限制的时候，删除文件列表首元素
-            diskUsage.touch(file);
+            //未完成的情况下，写到从头开始连续缓存的数据之后
+            writeAt(data, available, length);
         } catch (IOException e) {
-            throw new ProxyCacheException("Error closing file " + file, e);
+            String format = "Error writing %d bytes to %s from buffer with size %d";
+            throw new ProxyCacheException(String.format(format, length, file, data.length), e);
         }
     }
 
-    @Override
-    public synchronized void complete() throws ProxyCacheException {
-        if (isCompleted()) {
+    /**
+     * Writes data to cache at given offset. Range may be far from cached prefix (e.g. user seeks video).
+     * Data written to completed cache is ignored, because completed file already contains all bytes of source.
+     *
+     * @param data   a buffer with data.
+     * @param offset an offset in file data should be written to.
+     * @param length count of bytes to be written.
+     * @throws ProxyCacheException if error occurs while writing data or index.
+     */
+    public void write(byte[] data, long offset, int length) throws ProxyCacheException {
+        if (completed) {
             return;
         }
+        try {
+            writeAt(data, offset, length);
+        } catch (IOException e) {
+            String format = "Error writing %d bytes with offset %d to %s from buffer with size %d";
+            throw new ProxyCacheException(String.format(format, length, offset, file, data.length), e);
+        }
+    }
 
-        //如果是未完成的文件调用这个方法，首先close完成则修改文件名，将data文件变成只读权限
-        close();
+    /**
+     * Drops all cached data of not completed cache, e.g. because source is changed and cached bytes can't be
+     * combined with new ones. Completed cache is not changed. Empty index is saved, so bytes of writes started before
+     * discarding and landed after it are never treated as cached, even after reopening file.
+     *
+     * @throws ProxyCacheException if error occurs while truncating file.
+     */
+    public void discard() throws ProxyCacheException {
+        synchronized (lock) {
+            if (completed) {
+                return;
+            }
+            try {
+                generation++;
+                channel.truncate(0);
+                ranges = new CachedRanges();
+                //保存空索引而不是删除索引：丢弃之前开始的写入可能在截断之后才落盘，
+                //没有索引时这些字节会被当成从头开始连续缓存的数据
+                saveIndex();
+                available = 0;
+            } catch (IOException e) {
+                throw new ProxyCacheException("Error discarding cached data of " + file, e);
+            }
+        }
+    }
 
-        String fileName = file.getName().substring(0, file.getName().length() - TEMP_POSTFIX.length());
-        File completedFile = new File(file.getParentFile(), fileName);
-        boolean renamed = file.renameTo(completedFile);
-        if (!renamed) {
-            throw new ProxyCacheException("Error renaming file " + file + " to " + completedFile + " for completion!");
+    private void writeAt(byte[] data, long offset, int length) throws IOException {
+        int writeGeneration;
+        synchronized (lock) {
+            //第一次写到前缀之外之前先保存索引，这样文件中间的空洞永远不会被当成已缓存的数据
+            if (!indexSaved && !ranges.isContiguousWith(offset, offset + length)) {
+                saveIndex();
+            }
+            writeGeneration = generation;
         }
-        file = completedFile;
-        try {
-            dataFile = new RandomAccessFile(file, "r");
-        } catch (IOException e) {
-            throw new ProxyCacheException("Error opening " + file + " as disc cache", e);
+        //数据在锁外写入，读取和其他位置的写入不需要等待
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        synchronized (lock) {
+            //写入期间数据被丢弃或者缓存已经完成，不记录这个区间
+            if (writeGeneration != generation || completed) {
+                return;
+            }
+            ranges.add(offset, offset + length);
+            available = ranges.prefixLength();
+            unsavedBytes += length;
+            if (indexSaved && unsavedBytes >= INDEX_SYNC_BYTES) {
+                saveIndex();
+            }
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        ranges.save(indexFile);
+        indexSaved = true;
+        unsavedBytes = 0;
+    }
+
+    @Override
+    public void close() throws ProxyCacheException {
+        synchronized (lock) {
+            try {
+                //稀疏文件关闭前保存索引
+                if (!completed && indexSaved) {
+                    saveIndex();
+                }
+                //datafile关闭，释放内存映射
+                dataFile.close();
+                if (mappedFile != null) {
+                    mappedFile.release();
+                    mappedFile = null;
+                }
+                //更新diskUsage接口信息，其中实现diskUsage接口的具体类的TotalSizeLruDiskUsage的touch方法是
+                //修改文件的最后更新时间，处理文件空间，也就是当内容数量或者尺寸超过缓存限制的时候，删除文件列表首元素
+                //稀疏文件的长度不是实际占用的空间，传入已经缓存的字节数
+                diskUsage.touch(file, completed ? available : ranges.cachedBytes());
+            } catch (IOException e) {
+                throw new ProxyCacheException("Error closing file " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Marks cache as completed and renames temp file. File stays opened, so clients reading it at this moment
+     * are not interrupted.
+     */
+    @Override
+    public void complete() throws ProxyCacheException {
+        synchronized (lock) {
+            if (completed) {
+                return;
+            }
+            String fileName = file.getName().substring(0, file.getName().length() - TEMP_POSTFIX.length());
+            File completedFile = new File(file.getParentFile(), fileName);
+            //重命名不影响已经打开的文件，正在读取的客户端不会被中断
+            boolean renamed = file.renameTo(completedFile);
+            if (!renamed) {
+                throw new ProxyCacheException("Error renaming file " + file + " to " + completedFile + " for completion!");
+            }
+            try {
+                available = channel.size();
+                Files.delete(indexFile);
+                indexSaved = false;
+                diskUsage.touch(completedFile, available);
+            } catch (IOException e) {
+                throw new ProxyCacheException("Error completing " + completedFile + " as disc cache", e);
+            }
+            file = completedFile;
+            ranges = null;
+            completed = true;
         }
     }
 
     @Override
-    public synchronized boolean isCompleted() {
-        //不是临时文件则表示缓冲完成
-        return !isTempFile(file);
+    public boolean isCompleted() {
+        return completed;
     }
 
     /**
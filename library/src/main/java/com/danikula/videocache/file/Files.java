@@ -2,12 +2,6 @@ package com.danikula.videocache.file;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
  * Utils for work with files.
@@ -29,63 +23,40 @@ class Files {
         }
     }
 
-    //得到排序后的文件列表，最近最少未使用的排序列表
-    static List<File> getLruListFiles(File directory) {
-        List<File> result = new LinkedList<>();
-        File[] files = directory.listFiles();
-        if (files != null) {
-            result = Arrays.asList(files);
-            Collections.sort(result, new LastModifiedComparator());
+    static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Error deleting file " + file);
         }
-        return result;
     }
 
-    static void setLastModifiedNow(File file) throws IOException {
-        if (file.exists()) {
-            long now = System.currentTimeMillis();
-            boolean modified = file.setLastModified(now); // on some devices (e.g. Nexus 5) doesn't work
-            if (!modified) {
-                modify(file);
-                if (file.lastModified() < now) {
-                    throw new IOException("Error set last modified date to " + file);
-                }
-            }
-        }
+    //返回缓存文件对应的稀疏索引文件
+    static File getIndexFile(File file) {
+        return new File(file.getParentFile(), file.getName() + FileCache.INDEX_POSTFIX);
     }
 
-    //强行修改一下最后一个字节，看看修改时间是否有效，可以验证部分机型设置最后修改时间失败的问题
-    static void modify(File file) throws IOException {
-        long size = file.length();
-        if (size == 0) {
-            recreateZeroSizeFile(file);
-            return;
-        }
-
-        RandomAccessFile accessFile = new RandomAccessFile(file, "rwd");
-        accessFile.seek(size - 1);
-        byte lastByte = accessFile.readByte();
-        accessFile.seek(size - 1);
-        accessFile.write(lastByte);
-        accessFile.close();
+    //缓存条目的名称：临时文件和完成后的文件是同一个条目，去掉临时文件的后缀
+    static String getCacheEntryName(File file) {
+        String name = file.getName();
+        return name.endsWith(FileCache.TEMP_POSTFIX) ? name.substring(0, name.length() - FileCache.TEMP_POSTFIX.length()) : name;
     }
 
-    private static void recreateZeroSizeFile(File file) throws IOException {
-        if (!file.delete() || !file.createNewFile()) {
-            throw new IOException("Error recreate zero-size file " + file);
-        }
+    //删除缓存条目的所有文件：完成的文件、临时文件和稀疏缓存的索引文件
+    static boolean deleteCacheEntry(File file) {
+        File directory = file.getParentFile();
+        String name = getCacheEntryName(file);
+        File tempFile = new File(directory, name + FileCache.TEMP_POSTFIX);
+        boolean deleted = deleteIfExists(new File(directory, name));
+        deleted &= deleteIfExists(tempFile);
+        getIndexFile(tempFile).delete();
+        return deleted;
     }
 
-    //最近修改的比较器,修改时间越近的值越大
-    private static final class LastModifiedComparator implements Comparator<File> {
-
-        @Override
-        public int compare(File lhs, File rhs) {
-            return compareLong(lhs.lastModified(), rhs.lastModified());
-        }
+    private static boolean deleteIfExists(File file) {
+        return !file.exists() || file.delete();
+    }
 
-        private int compareLong(long first, long second) {
-            return (first < second) ? -1 : ((first == second) ? 0 : 1);
-        }
+    static boolean isIndexFile(File file) {
+        return file.getName().endsWith(FileCache.INDEX_POSTFIX);
     }
 
 }
@@ -4,81 +4,361 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * 使用LRU策略来管理缓存
  * {@link DiskUsage} that uses LRU (Least Recently Used) strategy to trim cache.
+ * <p/>
+ * Index is built only once, on first touch. After that size, count and recency of cached files are kept in memory:
+ * touch updates single entry and trimming visits only evicted entries. Changes of index are written to
+ * {@link LruJournal}, so at next start index is restored from journal instead of reading attributes of every file.
+ * <p/>
+ * Size of entry is count of bytes cached in it (see {@link #touch(File, long)}), not length of sparse temp file.
+ * <p/>
+ * Leased files (see {@link #lease(File)}) are never deleted and don't count toward limit, they are skipped while
+ * trimming and deleted after releasing last lease if cache still exceeds limit. Touched file is never deleted by
+ * its own touch. Deleted entries are reported to registered {@link EvictionListener}s.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
-abstract class LruDiskUsage implements DiskUsage {
+abstract class LruDiskUsage implements ManagedDiskUsage {
 
     private static final String LOG_TAG = "ProxyCache";
     //创建线程池，线程池只包含一个线程
     private final ExecutorService workerThread = Executors.newSingleThreadExecutor();
+    //缓存条目按最近使用的顺序排列，最久没有使用的在最前面，只在workerThread中访问
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, .75f, true);
+    //正在被使用的缓存条目的租用计数，会被不同的线程访问
+    private final Map<String, Integer> leases = new HashMap<>();
+    private final List<EvictionListener> evictionListeners = new CopyOnWriteArrayList<>();
+    private File directory;
+    private LruJournal journal;
+    private long totalSize;
 
     //最后一次接触（读取或者修改）的时间
     @Override
     public void touch(File file) throws IOException {
         //由新线程执行一个新的任务，用来清理文件缓存
-        workerThread.submit(new TouchCallable(file));
+        workerThread.submit(new TouchCallable(file, -1));
     }
 
-    private void touchInBackground(File file) throws IOException {
-        //设置最后修改时间
-        Files.setLastModifiedNow(file);
-        List<File> files = Files.getLruListFiles(file.getParentFile());
-        trim(files);
+    @Override
+    public void touch(File file, long cachedBytes) throws IOException {
+        workerThread.submit(new TouchCallable(file, cachedBytes));
+    }
+
+    @Override
+    public void lease(File file) {
+        String name = Files.getCacheEntryName(file);
+        synchronized (leases) {
+            Integer count = leases.get(name);
+            leases.put(name, count == null ? 1 : count + 1);
+        }
+    }
+
+    @Override
+    public void release(File file) {
+        String name = Files.getCacheEntryName(file);
+        synchronized (leases) {
+            Integer count = leases.get(name);
+            if (count == null) {
+                throw new IllegalStateException("File " + file + " is not leased");
+            }
+            if (count > 1) {
+                leases.put(name, count - 1);
+                return;
+            }
+            leases.remove(name);
+        }
+        //最后一个租用释放后，之前跳过的文件可能需要清理
+        workerThread.submit(new TrimCallable());
+    }
+
+    @Override
+    public void delete(File file) throws IOException {
+        //文件立即删除，下一个请求不会再读到旧文件；索引在后台线程中更新
+        boolean deleted = Files.deleteCacheEntry(file);
+        workerThread.submit(new DeleteCallable(file));
+        if (!deleted) {
+            throw new IOException("Error deleting cache file " + file);
+        }
+    }
+
+    @Override
+    public void registerEvictionListener(EvictionListener listener) {
+        evictionListeners.add(listener);
+    }
+
+    @Override
+    public void unregisterEvictionListener(EvictionListener listener) {
+        evictionListeners.remove(listener);
+    }
+
+    private boolean isLeased(String name) {
+        synchronized (leases) {
+            return leases.containsKey(name);
+        }
+    }
+
+    private void touchInBackground(File file, long cachedBytes) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.equals(this.directory)) {
+            buildIndex(directory);
+        }
+        //文件已经被删除（例如源变化后），不再加入索引
+        if (file.exists()) {
+            update(file, cachedBytes < 0 ? getCachedBytes(file) : cachedBytes);
+        }
+        trim(Files.getCacheEntryName(file));
+        if (journal.isCompactionNeeded(entries.size())) {
+            journal.compact(entries);
+        }
     }
 
     //抽象类用来判断该文件是否被缓存空间接收
     protected abstract boolean accept(File file, long totalSize, int totalCount);
 
-    //缩减缓存空间大小时，使用的是最近最少未使用的算法
-    private void trim(List<File> files) {
-        long totalSize = countTotalSize(files);
-        int totalCount = files.size();
+    //第一次使用时建立索引：有日志时重放日志，只需要列出文件名；没有日志时扫描目录，按最后修改时间排序
+    private void buildIndex(File directory) {
+        if (journal != null) {
+            journal.close();
+        }
+        this.directory = directory;
+        this.journal = new LruJournal(directory);
+        entries.clear();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        LinkedHashMap<String, CacheEntry> journalEntries = new LinkedHashMap<>(16, .75f, true);
+        if (journal.exists()) {
+            try {
+                journal.read(journalEntries);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error reading journal in " + directory + ", cache directory will be scanned", e);
+            }
+        }
+        Set<String> journalNames = new HashSet<>(journalEntries.keySet());
+        Set<String> existedNames = new HashSet<>();
+        List<IndexedFile> notJournaledFiles = new ArrayList<>();
         for (File file : files) {
-            boolean accepted = accept(file, totalSize, totalCount);
-            if (!accepted) {
-                long fileSize = file.length();
-                boolean deleted = file.delete();
-                if (deleted) {
-                    totalCount--;
-                    totalSize -= fileSize;
-                    Log.i(LOG_TAG, "Cache file " + file + " is deleted because it exceeds cache limit");
-                } else {
-                    Log.e(LOG_TAG, "Error deleting file " + file + " for trimming cache");
+            if (Files.isIndexFile(file) || LruJournal.isJournalFile(file)) {
+                continue;
+            }
+            String name = Files.getCacheEntryName(file);
+            existedNames.add(name);
+            if (!journalNames.contains(name)) {
+                notJournaledFiles.add(new IndexedFile(file));
+            }
+        }
+        //不在日志中的文件（没有日志或者日志丢失了最后的记录）按最后修改时间排在最前面
+        Collections.sort(notJournaledFiles, new LastModifiedComparator());
+        for (IndexedFile indexedFile : notJournaledFiles) {
+            String name = Files.getCacheEntryName(indexedFile.file);
+            CacheEntry entry = entries.get(name);
+            if (entry == null) {
+                entry = new CacheEntry(name);
+                entries.put(name, entry);
+            }
+            entry.size += indexedFile.size;
+            entry.completed |= !indexedFile.file.getName().endsWith(FileCache.TEMP_POSTFIX);
+        }
+        for (CacheEntry entry : journalEntries.values()) {
+            if (existedNames.contains(entry.name)) {
+                entries.put(entry.name, entry);
+            }
+        }
+        totalSize = 0;
+        for (CacheEntry entry : entries.values()) {
+            totalSize += entry.size;
+        }
+        journal.compact(entries);
+    }
+
+    private void update(File file, long size) {
+        String name = Files.getCacheEntryName(file);
+        CacheEntry entry = entries.get(name); // 访问顺序的map中get会把条目移到最后
+        if (entry == null) {
+            entry = new CacheEntry(name);
+            entries.put(name, entry);
+        }
+        totalSize += size - entry.size;
+        entry.size = size;
+        boolean completed = !file.getName().endsWith(FileCache.TEMP_POSTFIX);
+        if (completed && !entry.completed) {
+            entry.completed = true;
+            journal.complete(entry);
+        } else {
+            journal.touch(entry);
+        }
+    }
+
+    //缩减缓存空间大小时，使用的是最近最少未使用的算法，从最久没有使用的条目开始删除，直到满足限制
+    //正在被使用的条目会被跳过，释放后再清理；它们不计入限制，否则租用的条目超过限制时其他条目都会被删除
+    //正在被接触的条目不删除
+    private void trim(String touchedName) {
+        if (directory == null) {
+            return; // index is not built yet
+        }
+        long leasedSize = 0;
+        int leasedCount = 0;
+        boolean leasesCounted = false;
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            CacheEntry entry = iterator.next();
+            File file = new File(directory, entry.name);
+            if (accept(file, totalSize - leasedSize, entries.size() - leasedCount)) {
+                break;
+            }
+            //超过限制时才统计租用的条目，没有超过限制的接触不需要遍历索引
+            if (!leasesCounted) {
+                leasesCounted = true;
+                for (CacheEntry counted : entries.values()) {
+                    if (isLeased(counted.name)) {
+                        leasedSize += counted.size;
+                        leasedCount++;
+                    }
                 }
+                if (accept(file, totalSize - leasedSize, entries.size() - leasedCount)) {
+                    break;
+                }
+            }
+            if (entry.name.equals(touchedName) || isLeased(entry.name)) {
+                continue;
+            }
+            if (Files.deleteCacheEntry(file)) {
+                iterator.remove();
+                totalSize -= entry.size;
+                journal.evict(entry);
+                Log.i(LOG_TAG, "Cache file " + file + " is deleted because it exceeds cache limit");
+                notifyEvicted(file);
+            } else {
+                Log.e(LOG_TAG, "Error deleting file " + file + " for trimming cache");
             }
         }
     }
 
-    //计算总共的尺寸大小
-    private long countTotalSize(List<File> files) {
-        long totalSize = 0;
-        for (File file : files) {
-            totalSize += file.length();
+    private void deleteInBackground(File file) {
+        String name = Files.getCacheEntryName(file);
+        File completedFile = new File(file.getParentFile(), name);
+        if (completedFile.getParentFile().equals(directory)) {
+            CacheEntry entry = entries.remove(name);
+            if (entry != null) {
+                totalSize -= entry.size;
+                journal.evict(entry);
+            }
+        }
+        notifyEvicted(completedFile);
+    }
+
+    private void notifyEvicted(File file) {
+        for (EvictionListener listener : evictionListeners) {
+            listener.onEvicted(file);
+        }
+    }
+
+    //稀疏的临时文件按索引中已经缓存的字节数计算大小，而不是文件长度（一次跳到视频末尾就会让文件长度接近整个视频）
+    //索引损坏时FileCache会丢弃文件中的数据，所以按0计算
+    private static long getCachedBytes(File file) {
+        File indexFile = Files.getIndexFile(file);
+        if (!file.getName().endsWith(FileCache.TEMP_POSTFIX) || !indexFile.exists()) {
+            return file.length();
+        }
+        try {
+            return CachedRanges.load(indexFile).cachedBytes();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading index " + indexFile, e);
+            return 0;
+        }
+    }
+
+    static final class CacheEntry {
+
+        final String name;
+        long size;
+        boolean completed;
+
+        CacheEntry(String name) {
+            this.name = name;
+        }
+    }
+
+    //扫描目录时每个文件只读取一次属性
+    private static final class IndexedFile {
+
+        private final File file;
+        private final long size;
+        private final long lastModified;
+
+        IndexedFile(File file) {
+            this.file = file;
+            this.size = getCachedBytes(file);
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    //最近修改的比较器,修改时间越近的值越大
+    private static final class LastModifiedComparator implements Comparator<IndexedFile> {
+
+        @Override
+        public int compare(IndexedFile lhs, IndexedFile rhs) {
+            return lhs.lastModified < rhs.lastModified ? -1 : (lhs.lastModified == rhs.lastModified ? 0 : 1);
+        }
+    }
+
+    private class DeleteCallable implements Callable<Void> {
+
+        private final File file;
+
+        public DeleteCallable(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            deleteInBackground(file);
+            return null;
+        }
+    }
+
+    private class TrimCallable implements Callable<Void> {
+
+        @Override
+        public Void call() throws Exception {
+            trim(null);
+            return null;
         }
-        return totalSize;
     }
 
     //可以在后台被回调的接口，在后头执行touchinbackground方法
     private class TouchCallable implements Callable<Void> {
 
         private final File file;
+        //未知时为-1，根据文件计算
+        private final long cachedBytes;
 
-        public TouchCallable(File file) {
+        public TouchCallable(File file, long cachedBytes) {
             this.file = file;
+            this.cachedBytes = cachedBytes;
         }
 
         @Override
         public Void call() throws Exception {
-            touchInBackground(file);
+            touchInBackground(file, cachedBytes);
             return null;
         }
     }
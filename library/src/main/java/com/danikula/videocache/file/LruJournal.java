@@ -0,0 +1,180 @@
+package com.danikula.videocache.file;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Append-only journal of {@link LruDiskUsage} index stored in cache directory.
+ * <p/>
+ * Every touch, completion and eviction of cache entry is appended as single line, so recency of entries survives
+ * restarts without changing files' last modified dates, and index is restored at startup by replaying journal
+ * instead of reading attributes of every cached file. Journal is compacted (rewritten with one line per entry in LRU
+ * order) when it becomes much longer than index. Incomplete last line (process is killed while writing) is ignored.
+ * If journal can't be written, index keeps order in memory only and rewriting journal is retried after as many
+ * records as needed for compaction, not on every touch.
+ *
+ * 缓存索引的日志，记录缓存条目的访问、完成和删除，启动时重放日志恢复LRU顺序，日志过长时压缩
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class LruJournal {
+
+    private static final String LOG_TAG = "ProxyCache";
+    static final String JOURNAL_FILE = "video-cache.journal";
+    private static final String JOURNAL_TEMP_FILE = JOURNAL_FILE + ".tmp";
+    private static final String TOUCH = "TOUCH";
+    private static final String COMPLETE = "COMPLETE";
+    private static final String EVICT = "EVICT";
+    private static final int MIN_RECORDS_TO_COMPACT = 2000;
+
+    private final File journalFile;
+    private final File tempFile;
+    private Writer writer;
+    private int recordsCount;
+    //日志不可写时丢失的记录数，达到压缩的阈值时才重试重写日志，在此之前只保留内存中的顺序
+    private int lostRecords;
+
+    LruJournal(File directory) {
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.tempFile = new File(directory, JOURNAL_TEMP_FILE);
+    }
+
+    static boolean isJournalFile(File file) {
+        String name = file.getName();
+        return JOURNAL_FILE.equals(name) || JOURNAL_TEMP_FILE.equals(name);
+    }
+
+    boolean exists() {
+        return journalFile.exists();
+    }
+
+    /**
+     * Replays journal to index. Entries are put to map in order of their last usage.
+     *
+     * @param entries an access-ordered map to be filled.
+     */
+    void read(Map<String, LruDiskUsage.CacheEntry> entries) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                replay(line, entries);
+                recordsCount++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    //记录格式为"操作 文件名 [大小]"，文件名可能包含空格，所以按第一个和最后一个空格拆分
+    private void replay(String line, Map<String, LruDiskUsage.CacheEntry> entries) {
+        int nameStart = line.indexOf(' ') + 1;
+        String operation = nameStart > 0 ? line.substring(0, nameStart - 1) : line;
+        int sizeStart = line.lastIndexOf(' ') + 1;
+        try {
+            if (EVICT.equals(operation) && nameStart > 0 && nameStart < line.length()) {
+                entries.remove(line.substring(nameStart));
+            } else if ((TOUCH.equals(operation) || COMPLETE.equals(operation)) && sizeStart > nameStart + 1) {
+                String name = line.substring(nameStart, sizeStart - 1);
+                LruDiskUsage.CacheEntry entry = entries.remove(name);
+                boolean completed = COMPLETE.equals(operation) || (entry != null && entry.completed);
+                entry = new LruDiskUsage.CacheEntry(name);
+                entry.size = Long.parseLong(line.substring(sizeStart));
+                entry.completed = completed;
+                entries.put(entry.name, entry);
+            } else {
+                Log.w(LOG_TAG, "Skip wrong journal record '" + line + "'");
+            }
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Skip wrong journal record '" + line + "'");
+        }
+    }
+
+    void touch(LruDiskUsage.CacheEntry entry) {
+        append(TOUCH + " " + entry.name + " " + entry.size);
+    }
+
+    void complete(LruDiskUsage.CacheEntry entry) {
+        append(COMPLETE + " " + entry.name + " " + entry.size);
+    }
+
+    void evict(LruDiskUsage.CacheEntry entry) {
+        append(EVICT + " " + entry.name);
+    }
+
+    boolean isCompactionNeeded(int entriesCount) {
+        if (writer == null) {
+            return lostRecords >= MIN_RECORDS_TO_COMPACT;
+        }
+        return recordsCount > MIN_RECORDS_TO_COMPACT && recordsCount > 2 * entriesCount;
+    }
+
+    /**
+     * Rewrites journal with single record per entry. New journal is written to temp file and renamed,
+     * so there is always complete journal on disk.
+     *
+     * @param entries index entries in LRU order.
+     */
+    void compact(Map<String, LruDiskUsage.CacheEntry> entries) {
+        close();
+        lostRecords = 0;
+        try {
+            Writer tempWriter = newWriter(tempFile, false);
+            try {
+                for (LruDiskUsage.CacheEntry entry : entries.values()) {
+                    tempWriter.write((entry.completed ? COMPLETE : TOUCH) + " " + entry.name + " " + entry.size + "\n");
+                }
+            } finally {
+                tempWriter.close();
+            }
+            if (!tempFile.renameTo(journalFile)) {
+                throw new IOException("Error renaming " + tempFile + " to " + journalFile);
+            }
+            recordsCount = entries.size();
+            writer = newWriter(journalFile, true);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error compacting journal " + journalFile, e);
+        }
+    }
+
+    void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing journal " + journalFile, e);
+            }
+            writer = null;
+        }
+    }
+
+    //写入失败时关闭日志，丢失的记录达到压缩的阈值时重写整个日志
+    private void append(String record) {
+        if (writer == null) {
+            lostRecords++;
+            return;
+        }
+        try {
+            writer.write(record + "\n");
+            writer.flush();
+            recordsCount++;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing journal " + journalFile, e);
+            close();
+            lostRecords++;
+        }
+    }
+
+    private Writer newWriter(File file, boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Optional extension of {@link DiskUsage} for implementations that track usage of cache files by active proxies.
+ * <p/>
+ * Proxy server checks for it with {@code instanceof} (see {@link DiskUsages#asManaged(DiskUsage)}), so custom
+ * implementations of plain {@link DiskUsage} keep working: their files are just never leased.
+ *
+ * 可选的磁盘使用扩展接口，支持租用正在被代理使用的缓存文件；只实现DiskUsage的自定义实现不受影响
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public interface ManagedDiskUsage extends DiskUsage {
+
+    /**
+     * Same as {@link #touch(File)}, but with count of bytes actually cached in file. Not completed cache file is sparse,
+     * so its length can be much greater than space it takes.
+     *
+     * 稀疏的临时文件长度不等于实际缓存的字节数，使用缓存的字节数计算缓存大小
+     * @param file        a cache file (completed or not).
+     * @param cachedBytes count of bytes cached in file.
+     */
+    void touch(File file, long cachedBytes) throws IOException;
+
+    /**
+     * Marks cache file as being in use (read or written by active proxy). Leased file must not be deleted while
+     * trimming cache, it can be deleted only after all leases are released. Leases are reference-counted, every
+     * call must be paired with {@link #release(File)}.
+     *
+     * 标记缓存文件正在被使用，租用的文件在释放之前不会被清理
+     * @param file a cache file (completed or not).
+     */
+    void lease(File file);
+
+    /**
+     * Releases lease obtained by {@link #lease(File)}. File that exceeds cache limit is deleted after releasing last lease.
+     *
+     * @param file a cache file (completed or not).
+     */
+    void release(File file);
+
+    /**
+     * Deletes all files of cache entry (completed, temp and index files) and drops entry from index, e.g. because
+     * source is changed. Entry is deleted even if it is leased: clients reading opened file are not interrupted.
+     *
+     * 删除缓存条目的所有文件并从索引中移除，例如源已经变化
+     * @param file a cache file (completed or not).
+     * @throws IOException if file can't be deleted.
+     */
+    void delete(File file) throws IOException;
+
+    /**
+     * Registers listener to be notified when cache entry is deleted while trimming cache or by {@link #delete(File)}.
+     */
+    void registerEvictionListener(EvictionListener listener);
+
+    void unregisterEvictionListener(EvictionListener listener);
+
+    /**
+     * Listener of deleted cache entries. It is called from background thread of disk usage, so it must be fast.
+     */
+    interface EvictionListener {
+
+        /**
+         * @param file completed cache file of deleted entry (it may never exist if entry wasn't completed).
+         */
+        void onEvicted(File file);
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-only memory mapping of completed cache file shared by all clients of the same url.
+ * <p/>
+ * File is mapped by windows of {@link #DEFAULT_WINDOW_SIZE} bytes on first access to every window, so large files
+ * don't take address space they are not read from. Reads are memory copies from mapped windows, they don't make
+ * syscalls and don't take any lock. Single read or transfer never crosses window boundary, it returns less bytes
+ * in this case like any other channel.
+ * <p/>
+ * Mapping is obtained by {@link #acquire(File)}: all holders of the same file (file caches and index of completed files)
+ * share single reference-counted mapping. Every holder must {@link #release() release} it when file is evicted from cache
+ * or proxy is shut down. After releasing last reference file is closed and windows are dropped, memory is unmapped by
+ * garbage collector (there is no public API to unmap it immediately).
+ *
+ * 已完成缓存文件的只读内存映射，同一个url的所有客户端共享：按窗口懒映射，读取只是内存拷贝，不需要系统调用和锁
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public final class MappedFile {
+
+    /**
+     * Size of single mapped window in bytes.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 32 * 1024 * 1024;
+
+    //正在使用的共享映射，文件 -> 映射；引用计数也由这个锁保护
+    private static final Map<File, MappedFile> SHARED = new HashMap<>();
+
+    private final File path;
+    private final long lastModified;
+    private final RandomAccessFile file;
+    private final long length;
+    private final int windowSize;
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+    private int references = 1;
+    private volatile boolean released;
+
+    MappedFile(File file, int windowSize) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive number!");
+        }
+        this.path = file;
+        this.lastModified = file.lastModified();
+        this.file = new RandomAccessFile(file, "r");
+        this.length = this.file.length();
+        this.windowSize = windowSize;
+        this.windows = new AtomicReferenceArray<>((int) ((length + windowSize - 1) / windowSize));
+    }
+
+    /**
+     * Returns shared mapping of file, mapping is created if file isn't mapped yet. Every call must be paired
+     * with {@link #release()}.
+     *
+     * 返回文件的共享映射，引用计数加一
+     * @throws IOException if file can't be opened.
+     */
+    public static MappedFile acquire(File file) throws IOException {
+        File key = file.getAbsoluteFile();
+        synchronized (SHARED) {
+            MappedFile mapped = SHARED.get(key);
+            //同名的文件被删除后重新缓存了，旧的映射留给还在使用它的客户端，新的客户端使用新的映射
+            if (mapped == null || !mapped.isMappingOf(key)) {
+                mapped = new MappedFile(key, DEFAULT_WINDOW_SIZE);
+                SHARED.put(key, mapped);
+                return mapped;
+            }
+            mapped.references++;
+            return mapped;
+        }
+    }
+
+    private boolean isMappingOf(File file) {
+        return file.length() == length && file.lastModified() == lastModified;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Copies bytes at offset to buffer.
+     *
+     * @return count of copied bytes, less than {@code length} at the end of window or file, {@code -1} if offset is
+     * at the end of file.
+     * @throws IOException if mapping is released or window can't be mapped.
+     */
+    public int read(byte[] buffer, long offset, int length) throws IOException {
+        if (offset >= this.length) {
+            return -1;
+        }
+        ByteBuffer slice = slice(offset, length);
+        int count = slice.remaining();
+        slice.get(buffer, 0, count);
+        return count;
+    }
+
+    /**
+     * Writes up to {@code count} bytes at offset to channel directly from mapped memory.
+     *
+     * @return count of transferred bytes.
+     * @throws IOException if mapping is released, window can't be mapped or channel can't be written.
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        long end = Math.min(offset + count, length);
+        long transferred = 0;
+        while (offset + transferred < end) {
+            ByteBuffer slice = slice(offset + transferred, end - offset - transferred);
+            while (slice.hasRemaining()) {
+                transferred += target.write(slice);
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Releases reference to mapping. After releasing last reference file is closed and mapped windows are dropped:
+     * reads in progress finish normally, next reads fail.
+     */
+    public void release() {
+        synchronized (SHARED) {
+            if (references <= 0) {
+                return;
+            }
+            references--;
+            if (references > 0) {
+                return;
+            }
+            if (SHARED.get(path) == this) {
+                SHARED.remove(path);
+            }
+        }
+        released = true;
+        for (int i = 0; i < windows.length(); i++) {
+            windows.set(i, null);
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing to do: file is opened read only
+        }
+    }
+
+    // [offset, offset + count) limited by window containing offset
+    private ByteBuffer slice(long offset, long count) throws IOException {
+        int index = (int) (offset / windowSize);
+        MappedByteBuffer window = getWindow(index);
+        int position = (int) (offset - (long) index * windowSize);
+        int limit = (int) Math.min(window.capacity(), position + count);
+        //每次读取使用副本，position和limit互不影响
+        ByteBuffer slice = window.duplicate();
+        slice.limit(limit);
+        slice.position(position);
+        return slice;
+    }
+
+    private MappedByteBuffer getWindow(int index) throws IOException {
+        MappedByteBuffer window = windows.get(index);
+        if (window != null) {
+            return window;
+        }
+        synchronized (this) {
+            if (released) {
+                throw new IOException("Mapping of file is released");
+            }
+            window = windows.get(index);
+            if (window == null) {
+                long start = (long) index * windowSize;
+                window = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, length - start));
+                windows.set(index, window);
+            }
+            return window;
+        }
+    }
+}
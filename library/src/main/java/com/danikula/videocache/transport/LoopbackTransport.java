@@ -0,0 +1,141 @@
+package com.danikula.videocache.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+
+/**
+ * {@link OriginTransport} that serves sources from memory without any network, e.g. for offline tests and
+ * throughput measurements of proxy server.
+ * <p/>
+ * Sources are registered by {@link #put(String, byte[], String)}, requests to unknown urls get {@code 404} response.
+ * Range requests are answered with {@code 206} and {@code Content-Range} header like real http server does.
+ * Every source has {@code ETag} computed from its content, so registering new content for the same url
+ * emulates changed origin object: range request with outdated {@code If-Range} gets whole new source.
+ *
+ * 不访问网络的传输层，从内存中返回注册的数据，支持Range请求，用于离线测试和吞吐量测试
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public class LoopbackTransport implements OriginTransport {
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+
+    /**
+     * Registers source served by this transport.
+     *
+     * @param url  an url of source.
+     * @param data a content of source.
+     * @param mime a mime type of source, may be {@code null}.
+     */
+    public void put(String url, byte[] data, String mime) {
+        resources.put(checkNotNull(url), new Resource(checkNotNull(data), mime));
+    }
+
+    @Override
+    public OriginResponse open(String url, long offset, long end, String ifRange, int timeout) throws IOException {
+        Resource resource = resources.get(url);
+        if (resource == null) {
+            return new LoopbackResponse(HTTP_NOT_FOUND, null, null, null);
+        }
+        int length = resource.data.length;
+        boolean rangeRequest = (offset > 0 || end >= 0) && (ifRange == null || ifRange.equals(resource.etag));
+        if (!rangeRequest) {
+            return new LoopbackResponse(HTTP_OK, resource, new Slice(0, length), null);
+        }
+        if (offset >= length) {
+            return new LoopbackResponse(HTTP_RANGE_NOT_SATISFIABLE, resource, null, "bytes */" + length);
+        }
+        int last = end < 0 || end >= length ? length - 1 : (int) end;
+        String contentRange = String.format(Locale.US, "bytes %d-%d/%d", offset, last, length);
+        return new LoopbackResponse(HTTP_PARTIAL, resource, new Slice((int) offset, last + 1), contentRange);
+    }
+
+    private static final class Resource {
+
+        private final byte[] data;
+        private final String mime;
+        private final String etag;
+
+        Resource(byte[] data, String mime) {
+            this.data = data;
+            this.mime = mime;
+            this.etag = "\"" + Integer.toHexString(Arrays.hashCode(data)) + "-" + data.length + "\"";
+        }
+    }
+
+    private static final class Slice {
+
+        private final int from;
+        private final int to;
+
+        Slice(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final class LoopbackResponse implements OriginResponse {
+
+        private final int code;
+        private final Resource resource;
+        private final Slice slice;
+        private final String contentRange;
+        private InputStream body;
+
+        LoopbackResponse(int code, Resource resource, Slice slice, String contentRange) {
+            this.code = code;
+            this.resource = resource;
+            this.slice = slice;
+            this.contentRange = contentRange;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return code;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                return slice == null ? null : String.valueOf(slice.to - slice.from);
+            }
+            if ("Content-Range".equalsIgnoreCase(name)) {
+                return contentRange;
+            }
+            if ("Content-Type".equalsIgnoreCase(name)) {
+                return resource == null ? null : resource.mime;
+            }
+            if ("ETag".equalsIgnoreCase(name)) {
+                return resource == null ? null : resource.etag;
+            }
+            return null;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (slice == null) {
+                throw new FileNotFoundException("No content for response with code " + code);
+            }
+            if (body == null) {
+                body = new ByteArrayInputStream(resource.data, slice.from, slice.to - slice.from);
+            }
+            return body;
+        }
+
+        @Override
+        public void release(boolean exhausted) {
+        }
+    }
+}
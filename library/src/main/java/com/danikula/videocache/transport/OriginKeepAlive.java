@@ -0,0 +1,164 @@
+package com.danikula.videocache.transport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps connections of {@link UrlConnectionTransport} to origin servers alive between requests and counts requests
+ * that are expected to reuse them.
+ * <p/>
+ * {@link HttpURLConnection#disconnect()} closes underlying socket, so every seek, content probe or range request
+ * pays new TCP and TLS handshake. Instead connection whose response body is read completely is released by closing
+ * its input stream: socket returns to platform keep-alive cache and is picked up by next request to the same origin
+ * (scheme, host and port). Connections with unread body are still disconnected, because draining the rest of
+ * the video is more expensive than new handshake.
+ * <p/>
+ * This class is not a connection pool: sockets are pooled by platform, which doesn't report whether socket was
+ * actually reused. Counters are estimation: request is counted as warm if connection to its origin was released
+ * alive less than {@link #KEEP_ALIVE_MILLIS} ago and isn't taken by other request yet, otherwise it is counted as
+ * cold. Only final request of redirect chain is counted, connections of redirect hops are always disconnected.
+ * <p/>
+ * Single instance can be shared by several proxy servers, see
+ * {@link com.danikula.videocache.HttpProxyCacheServer.Builder#originKeepAlive(OriginKeepAlive)}.
+ *
+ * 源服务器连接的keep-alive：读完响应体的连接不断开，而是关闭输入流归还给系统的keep-alive缓存，
+ * 之后同一个源的请求可以复用已经建立的连接；系统不报告连接是否真的被复用，所以计数只是估计
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public class OriginKeepAlive {
+
+    private static final String LOG_TAG = "ProxyCache";
+
+    /**
+     * Max count of alive connections tracked for single origin, same as default 'http.maxConnections'.
+     */
+    static final int MAX_IDLE_CONNECTIONS_PER_ORIGIN = 5;
+    /**
+     * Time released connection is expected to be reused for, same as keep-alive time of platform connection cache.
+     */
+    static final long KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    private static OriginKeepAlive defaultKeepAlive;
+
+    //每个源（协议、主机、端口）空闲连接的归还时间
+    private final Map<String, Deque<Long>> idleConnections = new HashMap<>();
+    private final AtomicLong warmRequests = new AtomicLong();
+    private final AtomicLong coldRequests = new AtomicLong();
+
+    static synchronized OriginKeepAlive getDefault() {
+        if (defaultKeepAlive == null) {
+            defaultKeepAlive = new OriginKeepAlive();
+        }
+        return defaultKeepAlive;
+    }
+
+    /**
+     * Counts request that got final (not redirect) response of origin.
+     *
+     * @param connection a connection of request.
+     */
+    void onResponse(HttpURLConnection connection) {
+        if (acquireIdle(originOf(connection.getURL()))) {
+            warmRequests.incrementAndGet();
+        } else {
+            coldRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * Releases connection after usage. Connection is kept for reuse if its response body is read completely,
+     * otherwise it is disconnected.
+     *
+     * @param connection  a connection to release.
+     * @param inputStream a response body stream of connection, may be {@code null} if body was not opened.
+     * @param exhausted   {@code true} if whole response body is read.
+     */
+    void release(HttpURLConnection connection, InputStream inputStream, boolean exhausted) {
+        if (exhausted && inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing response of " + connection.getURL(), e);
+            }
+            releaseIdle(originOf(connection.getURL()));
+        } else {
+            connection.disconnect();
+        }
+    }
+
+    private synchronized boolean acquireIdle(String origin) {
+        Deque<Long> idle = idleConnections.get(origin);
+        if (idle == null) {
+            return false;
+        }
+        evictExpired(idle, System.currentTimeMillis());
+        boolean acquired = idle.pollLast() != null;
+        if (idle.isEmpty()) {
+            idleConnections.remove(origin);
+        }
+        return acquired;
+    }
+
+    private synchronized void releaseIdle(String origin) {
+        Deque<Long> idle = idleConnections.get(origin);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            idleConnections.put(origin, idle);
+        }
+        long now = System.currentTimeMillis();
+        evictExpired(idle, now);
+        if (idle.size() >= MAX_IDLE_CONNECTIONS_PER_ORIGIN) {
+            idle.pollFirst();
+        }
+        idle.addLast(now);
+    }
+
+    private void evictExpired(Deque<Long> idle, long now) {
+        Iterator<Long> iterator = idle.iterator();
+        while (iterator.hasNext() && now - iterator.next() > KEEP_ALIVE_MILLIS) {
+            iterator.remove();
+        }
+    }
+
+    private String originOf(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * Returns count of requests sent while connection to the same origin released by previous request was alive,
+     * such requests are expected to reuse connection.
+     *
+     * @return count of warm requests.
+     */
+    public long getWarmRequests() {
+        return warmRequests.get();
+    }
+
+    /**
+     * Returns count of requests sent without alive connection to their origin, such requests open new connection.
+     *
+     * @return count of cold requests.
+     */
+    public long getColdRequests() {
+        return coldRequests.get();
+    }
+
+    @Override
+    public String toString() {
+        return "OriginKeepAlive{" +
+                "warm=" + getWarmRequests() +
+                ", cold=" + getColdRequests() +
+                '}';
+    }
+}
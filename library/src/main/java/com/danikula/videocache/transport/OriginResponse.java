@@ -0,0 +1,44 @@
+package com.danikula.videocache.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response of origin server returned by {@link OriginTransport}.
+ *
+ * 源服务器的响应，使用后必须调用{@link #release(boolean)}
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public interface OriginResponse {
+
+    /**
+     * Returns status code of response after all redirects are followed.
+     *
+     * @return http status code.
+     */
+    int getResponseCode() throws IOException;
+
+    /**
+     * Returns value of response header.
+     *
+     * @param name a header name, case insensitive.
+     * @return header value or {@code null} if there is no such header.
+     */
+    String getHeader(String name);
+
+    /**
+     * Returns response body. Every call returns the same stream.
+     *
+     * @return stream of response body.
+     * @throws IOException if body can't be read, e.g. for error status codes.
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * Releases response. Connection of completely read response can be reused by next requests,
+     * other connections are closed.
+     *
+     * @param exhausted {@code true} if whole response body is read.
+     */
+    void release(boolean exhausted);
+}
@@ -0,0 +1,36 @@
+package com.danikula.videocache.transport;
+
+import com.danikula.videocache.ProxyCacheException;
+
+import java.io.IOException;
+
+/**
+ * Transport used by {@link com.danikula.videocache.HttpUrlSource} to request data from origin server.
+ * <p/>
+ * Transport sends every request (data stream, content probe or seek range) and follows redirects, so
+ * implementation is free to keep and share connections, e.g. multiplex many range streams over single
+ * HTTP/2 connection. Every {@link OriginResponse} must be released after usage.
+ * <p/>
+ * Implementations must be thread safe: one transport is used by all sources of proxy server.
+ *
+ * 请求源服务器的传输层接口，负责发送请求和处理重定向，实现可以复用或多路复用连接
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public interface OriginTransport {
+
+    /**
+     * Sends GET request for range {@code [offset, end]} of url following redirects.
+     *
+     * @param url     an url of source.
+     * @param offset  offset of first requested byte.
+     * @param end     offset of last requested byte (inclusive) or {@code -1} to request source till the end.
+     *                Range is not requested if {@code offset} is 0 and {@code end} is {@code -1}.
+     * @param ifRange value of 'If-Range' header (ETag or Last-Modified date) sent with range request, so server
+     *                returns whole source instead of range if source is changed. May be {@code null}.
+     * @param timeout connect and read timeout in milliseconds, non-positive value for default timeouts.
+     * @return response of origin, never {@code null}.
+     * @throws IOException         if request can't be sent.
+     * @throws ProxyCacheException if response can't be received, e.g. there are too many redirects.
+     */
+    OriginResponse open(String url, long offset, long end, String ifRange, int timeout) throws IOException, ProxyCacheException;
+}
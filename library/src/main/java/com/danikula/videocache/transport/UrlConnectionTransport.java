@@ -0,0 +1,119 @@
+package com.danikula.videocache.transport;
+
+import android.util.Log;
+
+import com.danikula.videocache.ProxyCacheException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
+import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
+import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
+
+/**
+ * Default {@link OriginTransport} based on {@link HttpURLConnection}.
+ * <p/>
+ * Redirects are followed by hand, connections are kept alive between requests by {@link OriginKeepAlive}.
+ *
+ * 基于HttpURLConnection的默认传输层，手动处理重定向，读完的连接保持keep-alive
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public class UrlConnectionTransport implements OriginTransport {
+
+    private static final String LOG_TAG = "ProxyCache";
+    private static final int MAX_REDIRECTS = 5;
+
+    private final OriginKeepAlive keepAlive;
+
+    public UrlConnectionTransport() {
+        this(OriginKeepAlive.getDefault());
+    }
+
+    public UrlConnectionTransport(OriginKeepAlive keepAlive) {
+        this.keepAlive = checkNotNull(keepAlive);
+    }
+
+    /**
+     * 打开连接，考虑重定向的问题，返回最终打开的连接的响应
+     */
+    @Override
+    public OriginResponse open(String url, long offset, long end, String ifRange, int timeout) throws IOException, ProxyCacheException {
+        HttpURLConnection connection;
+        boolean redirected;
+        int redirectCount = 0;
+        boolean rangeRequest = offset > 0 || end >= 0;
+        String range = "bytes=" + offset + "-" + (end >= 0 ? end : "");
+        do {
+            Log.d(LOG_TAG, "Open connection " + (rangeRequest ? " with range " + range : "") + " to " + url);
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            if (rangeRequest) {
+                connection.setRequestProperty("Range", range);
+                if (ifRange != null) {
+                    connection.setRequestProperty("If-Range", ifRange);
+                }
+            }
+            if (timeout > 0) {
+                connection.setConnectTimeout(timeout);
+                connection.setReadTimeout(timeout);
+            }
+            int code = connection.getResponseCode();
+            redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER;
+            if (redirected) {
+                url = connection.getHeaderField("Location");
+                redirectCount++;
+                connection.disconnect();
+            }
+            if (redirectCount > MAX_REDIRECTS) {
+                throw new ProxyCacheException("Too many redirects: " + redirectCount);
+            }
+        } while (redirected);
+        keepAlive.onResponse(connection);
+        return new UrlConnectionResponse(connection);
+    }
+
+    /**
+     * Returns keep-alive of connections used by this transport.
+     *
+     * @return a keep-alive of connections.
+     */
+    public OriginKeepAlive getKeepAlive() {
+        return keepAlive;
+    }
+
+    private final class UrlConnectionResponse implements OriginResponse {
+
+        private final HttpURLConnection connection;
+        private InputStream body;
+
+        UrlConnectionResponse(HttpURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return connection.getResponseCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = connection.getInputStream();
+            }
+            return body;
+        }
+
+        @Override
+        public void release(boolean exhausted) {
+            keepAlive.release(connection, body, exhausted);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.ManagedDiskUsage;
+import com.danikula.videocache.support.ProxyCacheTestUtils;
+import com.danikula.videocache.test.BuildConfig;
+import com.danikula.videocache.transport.LoopbackTransport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.danikula.android.garden.io.Files.cleanDirectory;
+import static com.danikula.android.garden.io.Files.createDirectory;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+/**
+ * Tests for {@link CompletedCacheIndex}.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@org.robolectric.annotation.Config(constants = BuildConfig.class)
+public class CompletedCacheIndexTest {
+
+    private static final String URL_A = "http://loopback/a.mp4";
+    private static final String URL_B = "http://loopback/b.mp4";
+
+    private File cacheFolder;
+
+    @Before
+    public void setup() throws Exception {
+        cacheFolder = ProxyCacheTestUtils.newCacheFile();
+        createDirectory(cacheFolder);
+        cleanDirectory(cacheFolder);
+    }
+
+    @Test
+    public void testEntryOfEvictedFileIsRemoved() throws Exception {
+        Config config = newConfig(1);
+        CompletedCacheIndex index = new CompletedCacheIndex(config);
+        File fileA = createCompletedFile(config, URL_A);
+        assertThat(fileA.setLastModified(System.currentTimeMillis() - 10000)).isTrue();
+        CompletedCacheIndex.Entry entry = index.find(URL_A);
+        assertThat(entry).isNotNull();
+        assertThat(entry.mappedFile).isNotNull();
+
+        EvictionLatch evicted = new EvictionLatch(config.diskUsage);
+        File fileB = createCompletedFile(config, URL_B);
+        config.diskUsage.touch(fileB);
+        evicted.await();
+        index.release();
+
+        assertThat(fileA).doesNotExist();
+        assertThat(index.find(URL_A)).isNull();
+        try {
+            entry.mappedFile.read(new byte[10], 0, 10);
+            fail("Mapping of evicted file must be released");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFileOfChangedSourceIsDeleted() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(URL_A, ProxyCacheTestUtils.generate(2048), "video/mp4");
+        Config config = newConfig(10, transport);
+        config.sourceInfoStorage.put(URL_A, new SourceInfo(URL_A, 1024, "video/mp4"));
+        File fileA = createCompletedFile(config, URL_A);
+        config.diskUsage.touch(fileA);
+
+        EvictionLatch evicted = new EvictionLatch(config.diskUsage);
+        CompletedCacheIndex index = new CompletedCacheIndex(config);
+        assertThat(index.find(URL_A)).isNotNull();
+        evicted.await();
+        index.release();
+
+        assertThat(fileA).doesNotExist();
+        assertThat(config.sourceInfoStorage.get(URL_A).length).isEqualTo(2048);
+    }
+
+    private Config newConfig(int maxFilesCount) {
+        return newConfig(maxFilesCount, new LoopbackTransport());
+    }
+
+    private Config newConfig(int maxFilesCount, LoopbackTransport transport) {
+        return new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .maxCacheFilesCount(maxFilesCount)
+                .originTransport(transport)
+                .memoryMapCompletedFiles(true)
+                .buildConfig();
+    }
+
+    private File createCompletedFile(Config config, String url) throws Exception {
+        File file = config.generateCacheFile(url);
+        com.google.common.io.Files.write(ProxyCacheTestUtils.generate(1024), file);
+        return file;
+    }
+
+    //在索引之后注册，监听器被调用时索引已经处理了删除的文件
+    private static final class EvictionLatch implements ManagedDiskUsage.EvictionListener {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final ManagedDiskUsage diskUsage;
+
+        EvictionLatch(ManagedDiskUsage diskUsage) {
+            this.diskUsage = diskUsage;
+            diskUsage.registerEvictionListener(this);
+        }
+
+        @Override
+        public void onEvicted(File file) {
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+            diskUsage.unregisterEvictionListener(this);
+        }
+    }
+}
@@ -61,6 +61,86 @@ public class GetRequestTest {
         assertThat(getRequest.partial).isFalse();
     }
 
+    @Test
+    public void testKeepAlive() throws Exception {
+        assertThat(new GetRequest("GET /uri HTTP/1.1\n").keepAlive).isTrue();
+        assertThat(new GetRequest("GET /uri HTTP/1.1\nConnection: keep-alive\n").keepAlive).isTrue();
+        assertThat(new GetRequest("GET /uri HTTP/1.1\nConnection: close\n").keepAlive).isFalse();
+        assertThat(new GetRequest("GET /uri HTTP/1.0\n").keepAlive).isFalse();
+        assertThat(new GetRequest("GET /uri HTTP/1.0\nConnection: Keep-Alive\n").keepAlive).isTrue();
+    }
+
+    @Test
+    public void testCrLfHeaders() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\r\nrange:bytes=42-\r\nCONNECTION: Close\r\n\r\n");
+        assertThat(getRequest.rangeOffset).isEqualTo(42);
+        assertThat(getRequest.partial).isTrue();
+        assertThat(getRequest.keepAlive).isFalse();
+    }
+
+    @Test
+    public void testDecodeUrl() throws Exception {
+        String url = "http://example.com/video 1.mp4?q=\u0432";
+        GetRequest getRequest = new GetRequest("GET /" + ProxyCacheUtils.encode(url) + " HTTP/1.1\n");
+        assertThat(getRequest.url).isEqualTo(url);
+        assertThat(new GetRequest("GET /uri HTTP/1.1").url).isEqualTo("uri");
+    }
+
+    @Test
+    public void testParseBuffer() throws Exception {
+        byte[] buffer = "xxGET /uri HTTP/1.1\nRange: bytes=100-\n\nGET /next HTTP/1.1\n\n".getBytes("UTF-8");
+        GetRequest getRequest = GetRequest.parse(buffer, 2, buffer.length - 2);
+        assertThat(getRequest.uri).isEqualTo("uri");
+        assertThat(getRequest.rangeOffset).isEqualTo(100);
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\nRange: bytes=0-499, 1000- ,-500\n");
+        assertThat(getRequest.partial).isTrue();
+        assertThat(getRequest.rangeOffset).isEqualTo(0);
+        assertThat(getRequest.ranges).hasSize(3);
+        assertThat(getRequest.ranges.get(0).start(2000)).isEqualTo(0);
+        assertThat(getRequest.ranges.get(0).end(2000)).isEqualTo(500);
+        assertThat(getRequest.ranges.get(1).start(2000)).isEqualTo(1000);
+        assertThat(getRequest.ranges.get(1).end(2000)).isEqualTo(2000);
+        assertThat(getRequest.ranges.get(2).isSuffix()).isTrue();
+        assertThat(getRequest.ranges.get(2).start(2000)).isEqualTo(1500);
+        assertThat(getRequest.ranges.get(2).end(2000)).isEqualTo(2000);
+    }
+
+    @Test
+    public void testSuffixRangeOffset() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\nRange: bytes=-65536\n");
+        assertThat(getRequest.partial).isTrue();
+        assertThat(getRequest.rangeOffset).isEqualTo(0);
+        assertThat(getRequest.ranges.get(0).start(100)).isEqualTo(0);
+        assertThat(getRequest.ranges.get(0).isSatisfiable(100)).isTrue();
+    }
+
+    @Test
+    public void testIgnoreMalformedRange() throws Exception {
+        assertThat(new GetRequest("GET /uri HTTP/1.1\nRange: bytes=200-100\n").partial).isFalse();
+        assertThat(new GetRequest("GET /uri HTTP/1.1\nRange: bytes=-\n").partial).isFalse();
+        assertThat(new GetRequest("GET /uri HTTP/1.1\nRange: items=0-10\n").partial).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyHeaders() throws Exception {
+        StringBuilder request = new StringBuilder("GET /uri HTTP/1.1\n");
+        for (int i = 0; i < 101; i++) {
+            request.append("X-Header: ").append(i).append('\n');
+        }
+        new GetRequest(request.toString());
+        fail("Too many headers");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLongRangeOffset() throws Exception {
+        new GetRequest("GET /uri HTTP/1.1\nRange: bytes=12345678901234567890-\n");
+        fail("Too long range offset");
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testEmpty() throws Exception {
         GetRequest getRequest = new GetRequest("");
@@ -8,6 +8,9 @@ import com.danikula.videocache.file.Md5FileNameGenerator;
 import com.danikula.videocache.support.ProxyCacheTestUtils;
 import com.danikula.videocache.support.Response;
 import com.danikula.videocache.test.BuildConfig;
+import com.danikula.videocache.transport.LoopbackTransport;
+import com.danikula.videocache.transport.OriginResponse;
+import com.danikula.videocache.transport.OriginTransport;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -18,7 +21,17 @@ import org.robolectric.annotation.Config;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.danikula.android.garden.io.Files.cleanDirectory;
 import static com.danikula.android.garden.io.Files.createDirectory;
@@ -256,6 +269,93 @@ public class HttpProxyCacheServerTest {
         assertThat(proxy.isCached(HTTP_DATA_URL)).isFalse();
     }
 
+    @Test
+    public void testProxyWithLoopbackTransport() throws Exception {
+        String url = "http://loopback/video.mp4";
+        byte[] data = ProxyCacheTestUtils.generate(5 * 1024 * 1024);
+        HttpProxyCacheServer proxy = newProxyBuilder(newLoopbackTransport(url, data)).build();
+        Response response = readProxyResponse(proxy, url);
+        proxy.shutdown();
+
+        assertThat(response.code).isEqualTo(200);
+        assertThat(response.contentType).isEqualTo("video/mp4");
+        assertThat(response.data).isEqualTo(data);
+    }
+
+    @Test
+    public void testProxyCacheLingersAfterLastClient() throws Exception {
+        String url = "http://loopback/linger.mp4";
+        byte[] data = ProxyCacheTestUtils.generate(100 * 1024);
+        HttpProxyCacheServer proxy = newProxyBuilder(newLoopbackTransport(url, data))
+                .proxyCacheLinger(10, TimeUnit.SECONDS)
+                .build();
+        Response response = readProxyResponse(proxy, url, 1000);
+        DownloadProgress progress = proxy.getDownloadProgress(url);
+        proxy.shutdown();
+
+        assertThat(response.data).isEqualTo(Arrays.copyOfRange(data, 1000, data.length));
+        assertThat(progress).isNotNull();
+        assertThat(progress.getSourceLength()).isEqualTo(data.length);
+        assertThat(proxy.getDownloadProgress(url)).isNull();
+    }
+
+    @Test
+    public void testServeCompletedFileWithoutOrigin() throws Exception {
+        String url = "http://loopback/completed.mp4";
+        byte[] data = ProxyCacheTestUtils.generate(100 * 1024);
+        HttpProxyCacheServer proxy = newProxyBuilder(newLoopbackTransport(url, data)).build();
+        readProxyResponse(proxy, url);
+        proxy.shutdown();
+
+        HttpProxyCacheServer offlineProxy = newProxyBuilder(new LoopbackTransport()).build();
+        Response response = readProxyResponse(offlineProxy, url, 1000);
+        DownloadProgress progress = offlineProxy.getDownloadProgress(url);
+        offlineProxy.shutdown();
+
+        assertThat(response.code).isEqualTo(206);
+        assertThat(response.contentType).isEqualTo("video/mp4");
+        assertThat(response.data).isEqualTo(Arrays.copyOfRange(data, 1000, data.length));
+        assertThat(progress).isNull();
+        assertThat(file(cacheFolder, url)).exists();
+    }
+
+    @Test
+    public void testRejectRequestsWhenAllWorkersAreBusy() throws Exception {
+        int slowClients = HttpProxyCacheServer.MAX_ACTIVE_REQUESTS;
+        byte[] data = ProxyCacheTestUtils.generate(1024);
+        LoopbackTransport loopbackTransport = new LoopbackTransport();
+        for (int i = 0; i <= slowClients; i++) {
+            loopbackTransport.put("http://loopback/slow-" + i, data, "video/mp4");
+        }
+        CountDownLatch opened = new CountDownLatch(slowClients);
+        CountDownLatch released = new CountDownLatch(1);
+        HttpProxyCacheServer proxy = newProxyBuilder(new SlowTransport(loopbackTransport, opened, released))
+                .maxConcurrentDownloads(slowClients)
+                .build();
+        ExecutorService clients = Executors.newFixedThreadPool(slowClients);
+        List<Future<Response>> responses = new ArrayList<>();
+        for (int i = 0; i < slowClients; i++) {
+            responses.add(clients.submit(new ReadProxyResponseCallable(proxy, "http://loopback/slow-" + i)));
+        }
+        assertThat(opened.await(10, TimeUnit.SECONDS)).isTrue();
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(proxy.getProxyUrl("http://loopback/slow-" + slowClients)).openConnection();
+        int rejectedCode = connection.getResponseCode();
+        String retryAfter = connection.getHeaderField("Retry-After");
+        connection.disconnect();
+        released.countDown();
+        for (Future<Response> response : responses) {
+            assertThat(response.get(10, TimeUnit.SECONDS).data).isEqualTo(data);
+        }
+        clients.shutdown();
+        Response response = readProxyResponse(proxy, "http://loopback/slow-" + slowClients);
+        proxy.shutdown();
+
+        assertThat(rejectedCode).isEqualTo(503);
+        assertThat(retryAfter).isEqualTo("1");
+        assertThat(response.data).isEqualTo(data);
+    }
+
     private Pair<File, Response> readProxyData(String url, int offset) throws IOException {
         File file = file(cacheFolder, url);
         HttpProxyCacheServer proxy = newProxy(cacheFolder);
@@ -276,9 +376,62 @@ public class HttpProxyCacheServerTest {
         return readProxyData(url, -1);
     }
 
+    private HttpProxyCacheServer.Builder newProxyBuilder(OriginTransport transport) {
+        return new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .originTransport(transport);
+    }
+
+    private LoopbackTransport newLoopbackTransport(String url, byte[] data) {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(url, data, "video/mp4");
+        return transport;
+    }
+
     private HttpProxyCacheServer newProxy(File cacheDir) {
         return new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
                 .cacheDirectory(cacheDir)
                 .build();
     }
+
+    private static final class ReadProxyResponseCallable implements Callable<Response> {
+
+        private final HttpProxyCacheServer proxy;
+        private final String url;
+
+        ReadProxyResponseCallable(HttpProxyCacheServer proxy, String url) {
+            this.proxy = proxy;
+            this.url = url;
+        }
+
+        @Override
+        public Response call() throws Exception {
+            return readProxyResponse(proxy, url);
+        }
+    }
+
+    // holds every opened source until released, so all clients wait for origin and occupy proxy's workers
+    private static final class SlowTransport implements OriginTransport {
+
+        private final OriginTransport transport;
+        private final CountDownLatch opened;
+        private final CountDownLatch released;
+
+        SlowTransport(OriginTransport transport, CountDownLatch opened, CountDownLatch released) {
+            this.transport = transport;
+            this.opened = opened;
+            this.released = released;
+        }
+
+        @Override
+        public OriginResponse open(String url, long offset, long end, String ifRange, int timeout) throws IOException, ProxyCacheException {
+            opened.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for release", e);
+            }
+            return transport.open(url, offset, end, ifRange, timeout);
+        }
+    }
 }
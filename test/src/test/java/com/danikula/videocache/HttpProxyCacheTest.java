@@ -7,6 +7,9 @@ import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
 import com.danikula.videocache.support.ProxyCacheTestUtils;
 import com.danikula.videocache.support.Response;
 import com.danikula.videocache.test.BuildConfig;
+import com.danikula.videocache.transport.LoopbackTransport;
+import com.danikula.videocache.transport.OriginResponse;
+import com.danikula.videocache.transport.OriginTransport;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -18,13 +21,16 @@ import org.robolectric.annotation.Config;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.danikula.videocache.support.ProxyCacheTestUtils.ASSETS_DATA_BIG_NAME;
 import static com.danikula.videocache.support.ProxyCacheTestUtils.ASSETS_DATA_NAME;
@@ -53,6 +59,8 @@ import static org.mockito.Mockito.when;
 @Config(constants = BuildConfig.class)
 public class HttpProxyCacheTest {
 
+    private static final String LOOPBACK_URL = "http://loopback/video.mp4";
+
     @Test
     public void testProcessRequestNoCache() throws Exception {
         Response response = processRequest(HTTP_DATA_URL, "GET /" + HTTP_DATA_URL + " HTTP/1.1");
@@ -79,14 +87,39 @@ public class HttpProxyCacheTest {
         assertThat(response.code).isEqualTo(206);
     }
 
+    @Test
+    public void testCachePartialRequestFarFromCache() throws Exception {
+        FileCache fileCache = new FileCache(ProxyCacheTestUtils.newCacheFile());
+        String httpRequest = "GET /" + HTTP_DATA_URL + " HTTP/1.1\nRange: bytes=2000-";
+        processRequest(HTTP_DATA_URL, httpRequest, fileCache);
+
+        FileCache spyFileCache = Mockito.spy(fileCache);
+        doThrow(new RuntimeException()).when(spyFileCache).write(any(byte[].class), anyLong(), anyInt());
+        Response response = processRequest(HTTP_DATA_URL, httpRequest, spyFileCache);
+
+        byte[] fullData = loadTestData();
+        byte[] partialData = new byte[fullData.length - 2000];
+        System.arraycopy(fullData, 2000, partialData, 0, partialData.length);
+        assertThat(response.data).isEqualTo(partialData);
+        assertThat(fileCache.available()).isEqualTo(0);
+        assertThat(fileCache.cachedLength(2000)).isEqualTo(partialData.length);
+    }
+
     @Test   // https://github.com/danikula/AndroidVideoCache/issues/43
     public void testPreventClosingOriginalSourceForNewPartialRequestWithoutCache() throws Exception {
-        HttpUrlSource source = new HttpUrlSource(HTTP_DATA_BIG_URL);
+        final CountDownLatch sourceOpened = new CountDownLatch(1);
+        HttpUrlSource source = new HttpUrlSource(HTTP_DATA_BIG_URL) {
+            @Override
+            public void open(long offset) throws ProxyCacheException {
+                super.open(offset);
+                sourceOpened.countDown();
+            }
+        };
         FileCache fileCache = new FileCache(ProxyCacheTestUtils.newCacheFile());
         HttpProxyCache proxyCache = new HttpProxyCache(source, fileCache);
         ExecutorService executor = Executors.newFixedThreadPool(5);
         Future<Response> firstRequestFeature = processAsync(executor, proxyCache, "GET /" + HTTP_DATA_URL + " HTTP/1.1");
-        Thread.sleep(100);  // wait for first request started to process
+        assertThat(sourceOpened.await(10, TimeUnit.SECONDS)).isTrue();  // first request started to process
 
         int offset = 30000;
         String partialRequest = "GET /" + HTTP_DATA_URL + " HTTP/1.1\nRange: bytes=" + offset + "-";
@@ -220,6 +253,237 @@ public class HttpProxyCacheTest {
         assertThat(response.contentType).isEqualTo("image/jpeg");
     }
 
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        String url = "http://loopback/video.mp4";
+        byte[] data = ProxyCacheTestUtils.generate(5 * 1024 * 1024 + 42);
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(url, data, "video/mp4");
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, transport);
+        FileCache fileCache = new FileCache(newCacheFile());
+        HttpProxyCache proxyCache = new HttpProxyCache(source, fileCache, new DownloadScheduler(), 4);
+
+        Response response = processRequest(proxyCache, "GET /" + url + " HTTP/1.1");
+        proxyCache.shutdown();
+
+        assertThat(response.data).isEqualTo(data);
+        assertThat(fileCache.isCompleted()).isTrue();
+        assertThat(ProxyCacheTestUtils.getFileContent(fileCache.getFile())).isEqualTo(data);
+    }
+
+    @Test
+    public void testRebuildSegmentedDownloadWhenSourceChanged() throws Exception {
+        String url = "http://loopback/video.mp4";
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(url, ProxyCacheTestUtils.generate(3 * 1024 * 1024 + 42), "video/mp4");
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, transport);
+        FileCache fileCache = new FileCache(newCacheFile());
+        HttpProxyCache proxyCache = new HttpProxyCache(source, fileCache, new DownloadScheduler(), 4);
+        source.open(0);
+        source.close();
+        SegmentedDownload oldDownload = proxyCache.getSegmentedDownload();
+
+        int newLength = 4 * 1024 * 1024 + 42;
+        transport.put(url, ProxyCacheTestUtils.generate(newLength), "video/mp4");
+        try {
+            source.open(0);
+            fail("Changed source should be detected");
+        } catch (SourceChangedException e) {
+            // expected
+        }
+        source.close();
+        proxyCache.onSourceChanged();
+        SegmentedDownload newDownload = proxyCache.getSegmentedDownload();
+        proxyCache.shutdown();
+
+        assertThat(oldDownload.isCancelled()).isTrue();
+        assertThat(oldDownload.take(0, Long.MAX_VALUE)).isNull();
+        assertThat(newDownload).isNotSameAs(oldDownload);
+        assertThat(newDownload.take(newLength - 1, Long.MAX_VALUE).end).isEqualTo(newLength);
+    }
+
+    @Test
+    public void testShareRangeFetchBetweenClients() throws Exception {
+        final RangeFetches rangeFetches = new RangeFetches();
+        final RangeFetches.Fetch fetch = rangeFetches.start(1000, 5000);
+        assertThat(fetch).isNotNull();
+        assertThat(rangeFetches.start(1500, 5000)).isNull();
+        assertThat(rangeFetches.getActiveFetches()).isEqualTo(1);
+
+        final CountDownLatch awaited = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    rangeFetches.await(1500);
+                    awaited.countDown();
+                } catch (ProxyCacheException e) {
+                    // test fails by timeout
+                }
+            }
+        }.start();
+        rangeFetches.onWritten(fetch, 1200);
+        assertThat(awaited.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        rangeFetches.onWritten(fetch, 2000);
+        assertThat(awaited.await(1, TimeUnit.SECONDS)).isTrue();
+        rangeFetches.finish(fetch);
+
+        assertThat(rangeFetches.getActiveFetches()).isEqualTo(0);
+        assertThat(rangeFetches.start(1500, 5000)).isNotNull();
+    }
+
+    @Test
+    public void testSegmentedDownloadPrefersReadPosition() throws Exception {
+        String url = "http://loopback/video.mp4";
+        long chunkSize = 1000;
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(url, ProxyCacheTestUtils.generate(4500), "video/mp4");
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, transport);
+        FileCache fileCache = new FileCache(newCacheFile());
+        byte[] cached = new byte[500];
+        fileCache.write(cached, 3000, cached.length);
+        SegmentedDownload segmentedDownload = new SegmentedDownload(source, fileCache, 2, chunkSize);
+
+        SegmentedDownload.Chunk first = segmentedDownload.take(2500, Long.MAX_VALUE);
+        SegmentedDownload.Chunk second = segmentedDownload.take(2500, Long.MAX_VALUE);
+        SegmentedDownload.Chunk third = segmentedDownload.take(2500, Long.MAX_VALUE);
+        SegmentedDownload.Chunk fourth = segmentedDownload.take(2500, Long.MAX_VALUE);
+
+        assertThat(first.offset).isEqualTo(2000);
+        assertThat(first.end).isEqualTo(3000);
+        assertThat(second.offset).isEqualTo(3500);
+        assertThat(second.end).isEqualTo(4000);
+        assertThat(third.offset).isEqualTo(4000);
+        assertThat(third.end).isEqualTo(4500);
+        assertThat(fourth.offset).isEqualTo(0);
+        fileCache.close();
+    }
+
+    @Test
+    public void testClosedRange() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(1024 * 1024);
+        HttpProxyCache proxyCache = newLoopbackProxyCache(data);
+
+        Response response = processRequest(proxyCache, "GET /" + LOOPBACK_URL + " HTTP/1.1\nRange: bytes=100-199\n");
+        proxyCache.shutdown();
+
+        assertThat(response.code).isEqualTo(206);
+        assertThat(response.contentLength).isEqualTo(100);
+        assertThat(response.headers.get("Content-Range").get(0)).isEqualTo("bytes 100-199/" + data.length);
+        assertThat(response.data).isEqualTo(Arrays.copyOfRange(data, 100, 200));
+    }
+
+    @Test
+    public void testDiscardCacheWhenSourceChangedBetweenRanges() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(LOOPBACK_URL, ProxyCacheTestUtils.generate(1024 * 1024), "video/mp4");
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(LOOPBACK_URL, sourceInfoStorage, transport);
+        FileCache fileCache = new FileCache(newCacheFile());
+        HttpProxyCache proxyCache = new HttpProxyCache(source, fileCache);
+
+        processRequest(proxyCache, "GET /" + LOOPBACK_URL + " HTTP/1.1\nRange: bytes=500000-500999\n");
+        assertThat(fileCache.cachedLength(500000)).isEqualTo(1000);
+
+        transport.put(LOOPBACK_URL, ProxyCacheTestUtils.generate(1024 * 1024), "video/mp4");
+        try {
+            processRequest(proxyCache, "GET /" + LOOPBACK_URL + " HTTP/1.1\nRange: bytes=700000-700999\n");
+            fail("Changed source should be detected");
+        } catch (SourceChangedException e) {
+            // expected
+        }
+        proxyCache.shutdown();
+
+        assertThat(fileCache.cachedLength(500000)).isEqualTo(0);
+    }
+
+    @Test
+    public void testSuffixRange() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(1024 * 1024);
+        HttpProxyCache proxyCache = newLoopbackProxyCache(data);
+
+        Response response = processRequest(proxyCache, "GET /" + LOOPBACK_URL + " HTTP/1.1\nRange: bytes=-65536\n");
+        proxyCache.shutdown();
+
+        assertThat(response.code).isEqualTo(206);
+        assertThat(response.headers.get("Content-Range").get(0))
+                .isEqualTo("bytes " + (data.length - 65536) + "-" + (data.length - 1) + "/" + data.length);
+        assertThat(response.data).isEqualTo(Arrays.copyOfRange(data, data.length - 65536, data.length));
+    }
+
+    @Test
+    public void testNotSatisfiableRange() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(1000);
+        HttpProxyCache proxyCache = newLoopbackProxyCache(data);
+
+        Response response = processRequest(proxyCache, "GET /" + LOOPBACK_URL + " HTTP/1.1\nRange: bytes=1000-\n");
+        proxyCache.shutdown();
+
+        assertThat(response.code).isEqualTo(416);
+        assertThat(response.headers.get("Content-Range").get(0)).isEqualTo("bytes */1000");
+        assertThat(response.data).isEmpty();
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(1000);
+        HttpProxyCache proxyCache = newLoopbackProxyCache(data);
+
+        Response response = processRequest(proxyCache, "GET /" + LOOPBACK_URL + " HTTP/1.1\nRange: bytes=0-9, -5\n");
+        proxyCache.shutdown();
+
+        assertThat(response.code).isEqualTo(206);
+        assertThat(response.contentType).startsWith("multipart/byteranges; boundary=");
+        assertThat(response.contentLength).isEqualTo(response.data.length);
+        String body = new String(response.data, "ISO-8859-1");
+        assertThat(body).contains("Content-Range: bytes 0-9/1000\r\n\r\n" + new String(data, 0, 10, "ISO-8859-1"));
+        assertThat(body).contains("Content-Range: bytes 995-999/1000\r\n\r\n" + new String(data, 995, 5, "ISO-8859-1"));
+    }
+
+    @Test
+    public void testServeCompletedCacheWithoutWaitingForOrigin() throws Exception {
+        byte[] cachedData = ProxyCacheTestUtils.generate(1000);
+        final LoopbackTransport loopbackTransport = new LoopbackTransport();
+        loopbackTransport.put(LOOPBACK_URL, ProxyCacheTestUtils.generate(2000), "video/mp4");
+        final CountDownLatch originUnblocked = new CountDownLatch(1);
+        OriginTransport blockingTransport = new OriginTransport() {
+
+            @Override
+            public OriginResponse open(String url, long offset, long end, String ifRange, int timeout) throws IOException, ProxyCacheException {
+                try {
+                    originUnblocked.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return loopbackTransport.open(url, offset, end, ifRange, timeout);
+            }
+        };
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+        sourceInfoStorage.put(LOOPBACK_URL, new SourceInfo(LOOPBACK_URL, cachedData.length, ""));
+        HttpUrlSource source = new HttpUrlSource(LOOPBACK_URL, sourceInfoStorage, blockingTransport);
+        File file = newCacheFile();
+        IoUtils.saveToFile(cachedData, file);
+        HttpProxyCache proxyCache = new HttpProxyCache(source, new FileCache(file));
+
+        Response response = processRequest(proxyCache, "GET /" + LOOPBACK_URL + " HTTP/1.1");
+        originUnblocked.countDown();
+        proxyCache.shutdown();
+
+        assertThat(response.data).isEqualTo(cachedData);
+        assertThat(sourceInfoStorage.get(LOOPBACK_URL).length).isEqualTo(cachedData.length);
+    }
+
+    private HttpProxyCache newLoopbackProxyCache(byte[] data) throws ProxyCacheException {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(LOOPBACK_URL, data, "video/mp4");
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(LOOPBACK_URL, sourceInfoStorage, transport);
+        return new HttpProxyCache(source, new FileCache(newCacheFile()));
+    }
+
     private Response processRequest(String sourceUrl, String httpRequest) throws ProxyCacheException, IOException {
         FileCache fileCache = new FileCache(ProxyCacheTestUtils.newCacheFile());
         return processRequest(sourceUrl, httpRequest, fileCache);
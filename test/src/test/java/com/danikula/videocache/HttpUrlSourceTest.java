@@ -4,15 +4,23 @@ import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
 import com.danikula.videocache.support.ProxyCacheTestUtils;
 import com.danikula.videocache.test.BuildConfig;
+import com.danikula.videocache.transport.LoopbackTransport;
+import com.danikula.videocache.transport.OriginKeepAlive;
+import com.danikula.videocache.transport.OriginResponse;
+import com.danikula.videocache.transport.OriginTransport;
+import com.danikula.videocache.transport.UrlConnectionTransport;
 
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 
 import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
@@ -75,11 +83,233 @@ public class HttpUrlSourceTest {
         assertThat(source.length()).isEqualTo(loadAssetFile(ASSETS_DATA_NAME).length);
     }
 
+    @Test
+    public void testFetchContentInfoOfBigSource() throws Exception {
+        HttpUrlSource source = new HttpUrlSource(HTTP_DATA_BIG_URL);
+        assertThat(source.isLengthKnown()).isFalse();
+        assertThat(source.length()).isEqualTo(HTTP_DATA_BIG_SIZE);
+        assertThat(source.isLengthKnown()).isTrue();
+    }
+
+    @Test
+    public void testContentInfoIsTakenFromOpenedConnection() throws Exception {
+        HttpUrlSource source = new HttpUrlSource(HTTP_DATA_URL);
+        source.open(0);
+        source.close();
+        assertThat(source.isLengthKnown()).isTrue();
+        assertThat(source.length()).isEqualTo(HTTP_DATA_SIZE);
+    }
+
+    @Test
+    public void testReuseConnectionOfReadSource() throws Exception {
+        OriginKeepAlive keepAlive = new OriginKeepAlive();
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(HTTP_DATA_URL, sourceInfoStorage, new UrlConnectionTransport(keepAlive));
+        source.open(0);
+        readSource(source, new byte[HTTP_DATA_SIZE]);
+        source.close();
+        source.open(0);
+        source.close();
+
+        assertThat(keepAlive.getColdRequests()).isEqualTo(1);
+        assertThat(keepAlive.getWarmRequests()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRedirectHopsAreNotCountedAsRequests() throws Exception {
+        OriginKeepAlive keepAlive = new OriginKeepAlive();
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(HTTP_DATA_URL_ONE_REDIRECT, sourceInfoStorage, new UrlConnectionTransport(keepAlive));
+        source.open(0);
+        readSource(source, new byte[HTTP_DATA_SIZE]);
+        source.close();
+        source.open(0);
+        source.close();
+
+        assertThat(keepAlive.getColdRequests()).isEqualTo(1);
+        assertThat(keepAlive.getWarmRequests()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDoNotReuseConnectionOfUnreadSource() throws Exception {
+        OriginKeepAlive keepAlive = new OriginKeepAlive();
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(HTTP_DATA_BIG_URL, sourceInfoStorage, new UrlConnectionTransport(keepAlive));
+        source.open(0);
+        source.read(new byte[DEFAULT_BUFFER_SIZE]);
+        source.close();
+        source.open(0);
+        source.close();
+
+        assertThat(keepAlive.getColdRequests()).isEqualTo(2);
+        assertThat(keepAlive.getWarmRequests()).isEqualTo(0);
+    }
+
+    @Test
+    public void testReadBoundedRange() throws Exception {
+        int offset = 1000;
+        int length = 10;
+        HttpUrlSource source = new HttpUrlSource(HTTP_DATA_URL);
+        source.open(offset, offset + length - 1);
+        byte[] readData = new byte[length];
+        readSource(source, readData);
+        long sourceLength = source.length();
+        source.close();
+
+        byte[] expectedData = Arrays.copyOfRange(loadAssetFile(ASSETS_DATA_NAME), offset, offset + length);
+        assertThat(readData).isEqualTo(expectedData);
+        assertThat(sourceLength).isEqualTo(HTTP_DATA_SIZE);
+    }
+
+    @Test
+    public void testLoopbackTransport() throws Exception {
+        String url = "http://loopback/data.mp4";
+        byte[] data = ProxyCacheTestUtils.generate(HTTP_DATA_BIG_SIZE);
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(url, data, "video/mp4");
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+
+        HttpUrlSource probedSource = new HttpUrlSource(url, sourceInfoStorage, transport);
+        assertThat(probedSource.length()).isEqualTo(HTTP_DATA_BIG_SIZE);
+        assertThat(probedSource.getMime()).isEqualTo("video/mp4");
+
+        int offset = 30000;
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, transport);
+        source.open(offset);
+        byte[] readData = new byte[HTTP_DATA_BIG_SIZE - offset];
+        readSource(source, readData);
+        source.close();
+        assertThat(readData).isEqualTo(Arrays.copyOfRange(data, offset, HTTP_DATA_BIG_SIZE));
+    }
+
+    @Test(expected = SourceChangedException.class)
+    public void testDoNotResumeChangedSource() throws Exception {
+        String url = "http://loopback/data.mp4";
+        LoopbackTransport transport = new LoopbackTransport();
+        byte[] data = ProxyCacheTestUtils.generate(HTTP_DATA_SIZE);
+        transport.put(url, data, "video/mp4");
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, transport);
+        source.open(0);
+        source.read(new byte[1000]);
+        source.close();
+
+        byte[] changedData = data.clone();
+        changedData[0]++;
+        transport.put(url, changedData, "video/mp4");
+        source.open(1000);
+        fail("Changed source should not be resumed");
+    }
+
+    @Test
+    public void testSourceIgnoringRangeIsNotChanged() throws Exception {
+        String url = "http://loopback/data.mp4";
+        final LoopbackTransport transport = new LoopbackTransport();
+        transport.put(url, ProxyCacheTestUtils.generate(HTTP_DATA_SIZE), "video/mp4");
+        OriginTransport rangeIgnoringTransport = new OriginTransport() {
+
+            @Override
+            public OriginResponse open(String url, long offset, long end, String ifRange, int timeout) throws IOException, ProxyCacheException {
+                return transport.open(url, 0, -1, null, timeout);
+            }
+        };
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, rangeIgnoringTransport);
+        source.open(0);
+        source.read(new byte[1000]);
+        source.close();
+
+        try {
+            source.open(1000);
+            fail("Source that doesn't support range requests can't be resumed");
+        } catch (SourceChangedException e) {
+            fail("Source isn't changed: it has the same ETag");
+        } catch (ProxyCacheException e) {
+            assertThat(e.getMessage()).contains("doesn't support range requests");
+        }
+    }
+
+    @Test
+    public void testErrorResponseDoesNotChangeSourceInfo() throws Exception {
+        String url = "http://loopback/data.mp4";
+        LoopbackTransport transport = new LoopbackTransport();
+        byte[] data = ProxyCacheTestUtils.generate(HTTP_DATA_SIZE);
+        transport.put(url, data, "video/mp4");
+        FlakyTransport flakyTransport = new FlakyTransport(transport);
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, flakyTransport);
+        source.open(0);
+        source.read(new byte[1000]);
+        source.close();
+        SourceInfo knownInfo = sourceInfoStorage.get(url);
+
+        byte[] changedData = data.clone();
+        changedData[0]++;
+        transport.put(url, changedData, "video/mp4");
+        flakyTransport.failNext = true;
+        try {
+            source.open(1000);
+            fail("Error response should not be read");
+        } catch (SourceChangedException e) {
+            fail("Error response doesn't say anything about source");
+        } catch (ProxyCacheException e) {
+            assertThat(e.getCause()).isInstanceOf(IOException.class); // server error is retried
+        }
+        assertThat(sourceInfoStorage.get(url).validator).isEqualTo(knownInfo.validator);
+        assertThat(sourceInfoStorage.get(url).mime).isEqualTo("video/mp4");
+
+        try {
+            source.open(1000);
+            fail("Changed source should not be resumed after error response");
+        } catch (SourceChangedException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = SourceChangedException.class)
+    public void testDoNotResumeSourceWithoutValidator() throws Exception {
+        String url = "http://loopback/data.mp4";
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(url, ProxyCacheTestUtils.generate(HTTP_DATA_SIZE), "video/mp4");
+        FlakyTransport flakyTransport = new FlakyTransport(transport);
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, flakyTransport);
+        source.open(0);
+        source.read(new byte[1000]);
+        source.close();
+
+        flakyTransport.dropValidator = true;
+        source.open(1000);
+        fail("Source can't be resumed if response has no validator to verify it");
+    }
+
+    @Test
+    public void testKnownMimeIsKeptForResponseWithoutContentType() throws Exception {
+        String url = "http://loopback/data";
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.put(url, ProxyCacheTestUtils.generate(HTTP_DATA_SIZE), null);
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+        sourceInfoStorage.put(url, new SourceInfo(url, HTTP_DATA_SIZE, "video/mp4"));
+        HttpUrlSource source = new HttpUrlSource(url, sourceInfoStorage, transport);
+        source.open(0);
+        source.close();
+
+        assertThat(source.getKnownMime()).isEqualTo("video/mp4");
+        assertThat(sourceInfoStorage.get(url).mime).isEqualTo("video/mp4");
+    }
+
+    @Test(expected = ProxyCacheException.class)
+    public void testLoopbackTransportUnknownUrl() throws Exception {
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        new HttpUrlSource("http://loopback/absent.mp4", sourceInfoStorage, new LoopbackTransport()).open(0);
+        fail("source.open() should throw exception for unknown url");
+    }
+
     @Test
     public void testFetchInfoWithRedirect() throws Exception {
         HttpUrlSource source = new HttpUrlSource(HTTP_DATA_URL_ONE_REDIRECT);
         source.open(0);
-        int available = source.length();
+        long available = source.length();
         String mime = source.getMime();
         source.close();
 
@@ -174,4 +404,72 @@ public class HttpUrlSourceTest {
             totalRead += readBytes;
         }
     }
+
+    // answers next request with server error or drops validators of responses of wrapped transport
+    private static final class FlakyTransport implements OriginTransport {
+
+        private final OriginTransport transport;
+        private volatile boolean failNext;
+        private volatile boolean dropValidator;
+
+        FlakyTransport(OriginTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public OriginResponse open(String url, long offset, long end, String ifRange, int timeout) throws IOException, ProxyCacheException {
+            if (failNext) {
+                failNext = false;
+                return new ServiceUnavailableResponse();
+            }
+            final OriginResponse response = transport.open(url, offset, end, ifRange, timeout);
+            if (!dropValidator) {
+                return response;
+            }
+            return new OriginResponse() {
+
+                @Override
+                public int getResponseCode() throws IOException {
+                    return response.getResponseCode();
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return "ETag".equals(name) || "Last-Modified".equals(name) ? null : response.getHeader(name);
+                }
+
+                @Override
+                public InputStream getBody() throws IOException {
+                    return response.getBody();
+                }
+
+                @Override
+                public void release(boolean exhausted) {
+                    response.release(exhausted);
+                }
+            };
+        }
+    }
+
+    private static final class ServiceUnavailableResponse implements OriginResponse {
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return 503;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return "Content-Type".equals(name) ? "text/html" : null;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            throw new IOException("Server returned HTTP response code: 503");
+        }
+
+        @Override
+        public void release(boolean exhausted) {
+        }
+    }
 }
@@ -0,0 +1,89 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.test.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class OffsetWaitersTest {
+
+    @Test
+    public void testWakeReadersByOffset() throws Exception {
+        OffsetWaiters waiters = new OffsetWaiters();
+        CountDownLatch near = startWaiter(waiters, 100);
+        CountDownLatch far = startWaiter(waiters, 200);
+
+        waiters.signalAvailable(50);
+        assertThat(near.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+        waiters.signalAvailable(150);
+        assertThat(near.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(far.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+        waiters.signalAvailable(200);
+        assertThat(far.await(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testAvailableDataIsNotWaited() throws Exception {
+        OffsetWaiters waiters = new OffsetWaiters();
+        waiters.signalAvailable(100);
+
+        waiters.await(100, waiters.generation());
+    }
+
+    @Test
+    public void testWakeAllReaders() throws Exception {
+        OffsetWaiters waiters = new OffsetWaiters();
+        CountDownLatch near = startWaiter(waiters, 100);
+        CountDownLatch far = startWaiter(waiters, Long.MAX_VALUE);
+
+        waiters.signalAll();
+
+        assertThat(near.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(far.await(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testResetForgetsAvailableData() throws Exception {
+        OffsetWaiters waiters = new OffsetWaiters();
+        waiters.signalAvailable(100);
+
+        waiters.reset();
+        CountDownLatch waiter = startWaiter(waiters, 50);
+        assertThat(waiter.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+        waiters.signalAvailable(50);
+        assertThat(waiter.await(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    // returned latch is released when waiter is woken
+    private CountDownLatch startWaiter(final OffsetWaiters waiters, final long offset) {
+        final int generation = waiters.generation();
+        final CountDownLatch woken = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waiters.await(offset, generation);
+                    woken.countDown();
+                } catch (InterruptedException e) {
+                    // test fails by timeout
+                }
+            }
+        }).start();
+        return woken;
+    }
+}
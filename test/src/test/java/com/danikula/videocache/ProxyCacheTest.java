@@ -11,8 +11,10 @@ import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static com.danikula.videocache.support.ProxyCacheTestUtils.ASSETS_DATA_NAME;
@@ -24,6 +26,10 @@ import static com.danikula.videocache.support.ProxyCacheTestUtils.loadAssetFile;
 import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
 import static com.danikula.videocache.support.ProxyCacheTestUtils.newPhlegmaticSource;
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
 
 /**
  * @author Alexey Danilov (danikula@gmail.com).
@@ -73,6 +79,72 @@ public class ProxyCacheTest {
         assertThat(buffer).isEqualTo(expected);
     }
 
+    @Test
+    public void testResumeSourceAfterNetworkError() throws Exception {
+        byte[] sourceData = generate(20000);
+        Source source = spy(new ByteArraySource(sourceData));
+        ProxyCacheException networkError = new ProxyCacheException("Connection reset", new IOException());
+        doThrow(networkError).doCallRealMethod().when(source).read(any(byte[].class));
+        Cache cache = new ByteArrayCache();
+        ProxyCache proxyCache = new ProxyCache(source, cache);
+
+        byte[] buffer = new byte[sourceData.length];
+        int read = proxyCache.read(buffer, 0, sourceData.length);
+
+        assertThat(read).isEqualTo(sourceData.length);
+        assertThat(buffer).isEqualTo(sourceData);
+    }
+
+    @Test(expected = ProxyCacheException.class)
+    public void testReportErrorWithoutRetries() throws Exception {
+        byte[] sourceData = generate(20000);
+        Source source = spy(new ByteArraySource(sourceData));
+        ProxyCacheException networkError = new ProxyCacheException("Connection reset", new IOException());
+        doThrow(networkError).doCallRealMethod().when(source).read(any(byte[].class));
+        ProxyCache proxyCache = new ProxyCache(source, new ByteArrayCache(), DownloadScheduler.getDefault(), 0);
+
+        proxyCache.read(new byte[sourceData.length], 0, sourceData.length);
+        fail("Network error should be reported if retries are disabled");
+    }
+
+    @Test
+    public void testPauseDownloadAheadOfReader() throws Exception {
+        byte[] sourceData = generate(200000);
+        File file = newCacheFile();
+        CompletionAwareFileCache cache = new CompletionAwareFileCache(file);
+        final CountDownLatch sourceClosed = new CountDownLatch(1);
+        Source source = new ByteArraySource(sourceData) {
+            @Override
+            public void close() throws ProxyCacheException {
+                super.close();
+                sourceClosed.countDown();
+            }
+        };
+        ReadAheadPolicy readAheadPolicy = ReadAheadPolicy.bytesAhead(20000);
+        ProxyCache proxyCache = new ProxyCache(source, cache, DownloadScheduler.getDefault(),
+                ProxyCache.DEFAULT_MAX_SOURCE_RETRIES, readAheadPolicy);
+
+        byte[] buffer = new byte[4096];
+        proxyCache.read(buffer, 0, 1000);
+        assertThat(sourceClosed.await(2, TimeUnit.SECONDS)).isTrue(); // paused reader closes source
+        DownloadProgress progress = proxyCache.getDownloadProgress();
+
+        assertThat(progress.isPaused()).isTrue();
+        assertThat(progress.getFurthestReadOffset()).isEqualTo(1000);
+        assertThat(progress.getBytesAhead()).isGreaterThan(20000);
+        assertThat(progress.getCachedBytes()).isLessThan(1000 + 20000 + ProxyCacheUtils.DEFAULT_BUFFER_SIZE + 1);
+        assertThat(cache.isCompleted()).isFalse();
+
+        int offset = 0;
+        while (offset < sourceData.length) {
+            int read = proxyCache.read(buffer, offset, Math.min(buffer.length, sourceData.length - offset));
+            assertThat(Arrays.copyOf(buffer, read)).isEqualTo(Arrays.copyOfRange(sourceData, offset, offset + read));
+            offset += read;
+        }
+        cache.awaitCompletion();
+        assertThat(getFileContent(file)).isEqualTo(sourceData);
+    }
+
     @Test
     public void testReuseCache() throws Exception {
         int size = 20000;
@@ -107,11 +179,10 @@ public class ProxyCacheTest {
     public void testReadEnd() throws Exception {
         int capacity = 5323;
         Source source = newPhlegmaticSource(generate(capacity), 200);
-        Cache cache = new FileCache(newCacheFile());
+        CompletionAwareFileCache cache = new CompletionAwareFileCache(newCacheFile());
         ProxyCache proxyCache = new ProxyCache(source, cache);
         proxyCache.read(new byte[1], capacity - 1, 1);
-        TimeUnit.MILLISECONDS.sleep(200); // wait for completion
-        assertThat(cache.isCompleted()).isTrue();
+        cache.awaitCompletion();
     }
 
     @Test
@@ -120,7 +191,7 @@ public class ProxyCacheTest {
         byte[] sourceData = generate(dataSize);
         Source source = newPhlegmaticSource(sourceData, 300);
         File file = newCacheFile();
-        Cache cache = new FileCache(file);
+        CompletionAwareFileCache cache = new CompletionAwareFileCache(file);
         ProxyCache proxyCache = new ProxyCache(source, cache);
         Random random = new Random(System.currentTimeMillis());
         for (int i = 0; i < 100; i++) {
@@ -133,8 +204,7 @@ public class ProxyCacheTest {
             assertThat(buffer).isEqualTo(dataPortion);
         }
         proxyCache.read(new byte[1], dataSize - 1, 1);
-        TimeUnit.MILLISECONDS.sleep(200); // wait for completion
-        assertThat(cache.isCompleted()).isTrue();
+        cache.awaitCompletion();
         assertThat(sourceData).isEqualTo(getFileContent(file));
     }
 
@@ -184,4 +254,49 @@ public class ProxyCacheTest {
 
         assertThat(readData).isEqualTo(data);
     }
+
+    @Test
+    public void testReadWithSingleDownloadSlot() throws Exception {
+        DownloadScheduler downloadScheduler = new DownloadScheduler(1);
+        byte[] firstData = generate(20000);
+        byte[] secondData = generate(30000);
+        ProxyCache firstProxyCache = new ProxyCache(newPhlegmaticSource(firstData, 50), new ByteArrayCache(), downloadScheduler);
+        ProxyCache secondProxyCache = new ProxyCache(new ByteArraySource(secondData), new ByteArrayCache(), downloadScheduler);
+
+        byte[] firstBuffer = new byte[firstData.length];
+        firstProxyCache.read(firstBuffer, 0, 5);
+        byte[] secondBuffer = new byte[secondData.length];
+        secondProxyCache.read(secondBuffer, 0, secondData.length);
+        firstProxyCache.read(firstBuffer, 0, firstData.length);
+
+        assertThat(firstBuffer).isEqualTo(firstData);
+        assertThat(secondBuffer).isEqualTo(secondData);
+        assertThat(downloadScheduler.getMaxConcurrentDownloads()).isEqualTo(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDownloadSchedulerWithoutSlots() throws Exception {
+        new DownloadScheduler(0);
+    }
+
+    // reports completion of cache, so tests wait for it instead of sleeping
+    private static final class CompletionAwareFileCache extends FileCache {
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        CompletionAwareFileCache(File file) throws ProxyCacheException {
+            super(file);
+        }
+
+        @Override
+        public void complete() throws ProxyCacheException {
+            super.complete();
+            completed.countDown();
+        }
+
+        void awaitCompletion() throws InterruptedException {
+            assertThat(completed.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(isCompleted()).isTrue();
+        }
+    }
 }
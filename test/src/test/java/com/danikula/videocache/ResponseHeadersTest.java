@@ -0,0 +1,64 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.test.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ResponseHeadersTest {
+
+    @Test
+    public void testPartialResponse() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ResponseHeaders().write(out, true, 100, 10, 12345, "video/mp4", true);
+        assertThat(out.toString("US-ASCII")).isEqualTo("" +
+                "HTTP/1.1 206 PARTIAL CONTENT\n" +
+                "Accept-Ranges: bytes\n" +
+                "Content-Length: 10\n" +
+                "Content-Range: bytes 100-109/12345\n" +
+                "Content-Type: video/mp4\n" +
+                "Connection: keep-alive\n" +
+                "\n");
+    }
+
+    @Test
+    public void testUnknownLengthAndMime() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ResponseHeaders().write(out, false, 0, -1, -1, null, false);
+        assertThat(out.toString("US-ASCII")).isEqualTo("" +
+                "HTTP/1.1 200 OK\n" +
+                "Accept-Ranges: bytes\n" +
+                "Connection: close\n" +
+                "\n");
+    }
+
+    @Test
+    public void testReuseEncodedSourceInfo() throws Exception {
+        ResponseHeaders responseHeaders = new ResponseHeaders();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        responseHeaders.write(out, false, 0, 1000, 1000, "video/mp4", true);
+        out.reset();
+        responseHeaders.write(out, true, 0, 100, 2000, "audio/mpeg", true);
+        assertThat(out.toString("US-ASCII")).contains("Content-Range: bytes 0-99/2000\n").contains("Content-Type: audio/mpeg\n");
+    }
+
+    @Test
+    public void testPartHeaderLength() throws Exception {
+        ResponseHeaders responseHeaders = new ResponseHeaders();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        responseHeaders.writePartHeader(out, 9, 1000, 123456789, "video/mp4");
+        assertThat(out.size()).isEqualTo(responseHeaders.getPartHeaderLength(9, 1000, 123456789, "video/mp4"));
+        assertThat(out.toString("US-ASCII")).endsWith("Content-Range: bytes 9-999/123456789\r\n\r\n");
+    }
+}
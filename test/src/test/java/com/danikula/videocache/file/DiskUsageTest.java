@@ -11,6 +11,8 @@ import org.robolectric.annotation.Config;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.danikula.android.garden.io.Files.cleanDirectory;
 import static com.danikula.android.garden.io.Files.createDirectory;
@@ -55,7 +57,7 @@ public class DiskUsageTest {
 
         assertThat(file("a")).doesNotExist();
         assertThat(file("c")).doesNotExist();
-        assertThat(file("d")).doesNotExist();
+        assertThat(file("d")).exists(); // touched file is never deleted
     }
 
     @Test
@@ -105,6 +107,206 @@ public class DiskUsageTest {
         assertThat(file("b")).doesNotExist();
     }
 
+    @Test
+    public void testTempAndCompletedFilesAreSingleEntry() throws Exception {
+        DiskUsage diskUsage = new TotalCountLruDiskUsage(1);
+        long now = System.currentTimeMillis();
+        createFile(file("a.download"), 101, now - 10000);
+        createFile(file("a.download.index"), 24, now - 10000);
+        createFile(file("b"), 102, now - 8000);
+
+        diskUsage.touch(file("b"));
+        waitForAsyncTrimming();
+
+        assertThat(file("a.download")).doesNotExist();
+        assertThat(file("a.download.index")).doesNotExist();
+        assertThat(file("b")).exists();
+
+        createFile(file("c.download"), 103, now - 4000);
+        diskUsage.touch(file("c.download"));
+        createFile(file("c"), 103, now);
+        diskUsage.touch(file("c"));
+        waitForAsyncTrimming();
+
+        assertThat(file("b")).doesNotExist();
+        assertThat(file("c")).exists();
+    }
+
+    @Test
+    public void testRecencyRestoredFromJournal() throws Exception {
+        DiskUsage diskUsage = new TotalCountLruDiskUsage(10);
+        long now = System.currentTimeMillis();
+        createFile(file("a"), 101, now - 10000);
+        createFile(file("b"), 102, now - 10000);
+        createFile(file("c"), 103, now - 10000);
+
+        diskUsage.touch(file("a"));
+        diskUsage.touch(file("b"));
+        diskUsage.touch(file("c"));
+        diskUsage.touch(file("a"));
+        waitForAsyncTrimming();
+        assertThat(file(LruJournal.JOURNAL_FILE)).exists();
+
+        createFile(file("d"), 104, now - 20000);
+        new TotalCountLruDiskUsage(2).touch(file("d"));
+        waitForAsyncTrimming();
+
+        assertThat(file("a")).exists();
+        assertThat(file("b")).doesNotExist();
+        assertThat(file("c")).doesNotExist();
+        assertThat(file("d")).exists();
+    }
+
+    @Test
+    public void testJournalIsNotRewrittenOnEveryTouchAfterFailure() throws Exception {
+        DiskUsage diskUsage = new TotalCountLruDiskUsage(2);
+        long now = System.currentTimeMillis();
+        createFile(file("a"), 101, now - 10000);
+        createFile(file("b"), 102, now - 8000);
+        File tempJournal = file(LruJournal.JOURNAL_FILE + ".tmp");
+        assertThat(tempJournal.mkdir()).isTrue(); // journal can't be written
+
+        diskUsage.touch(file("a"));
+        waitForAsyncTrimming();
+        assertThat(file(LruJournal.JOURNAL_FILE)).doesNotExist();
+
+        assertThat(tempJournal.delete()).isTrue();
+        createFile(file("c"), 103, now - 4000);
+        diskUsage.touch(file("c"));
+        waitForAsyncTrimming();
+
+        // index order is kept in memory, journal is not retried until compaction threshold
+        assertThat(file(LruJournal.JOURNAL_FILE)).doesNotExist();
+        assertThat(file("a")).exists();
+        assertThat(file("b")).doesNotExist();
+        assertThat(file("c")).exists();
+    }
+
+    @Test
+    public void testNameWithSpacesRestoredFromJournal() throws Exception {
+        DiskUsage diskUsage = new TotalCountLruDiskUsage(10);
+        long now = System.currentTimeMillis();
+        createFile(file("a b"), 101, now - 10000);
+        createFile(file("c"), 102, now - 10000);
+
+        diskUsage.touch(file("c"));
+        diskUsage.touch(file("a b"));
+        waitForAsyncTrimming();
+
+        createFile(file("d"), 103, now - 20000);
+        new TotalCountLruDiskUsage(2).touch(file("d"));
+        waitForAsyncTrimming();
+
+        assertThat(file("a b")).exists();
+        assertThat(file("c")).doesNotExist();
+        assertThat(file("d")).exists();
+    }
+
+    @Test
+    public void testLeasedFileIsNotDeleted() throws Exception {
+        ManagedDiskUsage diskUsage = new TotalSizeLruDiskUsage(150);
+        long now = System.currentTimeMillis();
+        createFile(file("b.download"), 101, now - 10000);
+        createFile(file("a"), 104, now - 4000); // exceeds
+
+        diskUsage.lease(file("b"));
+        diskUsage.lease(file("a"));
+        diskUsage.touch(file("a"));
+        waitForAsyncTrimming();
+
+        assertThat(file("b.download")).exists();
+        assertThat(file("a")).exists();
+
+        diskUsage.release(file("b"));
+        waitForAsyncTrimming();
+
+        // leased "a" doesn't count toward limit, so "b" fits
+        assertThat(file("b.download")).exists();
+        assertThat(file("a")).exists();
+
+        diskUsage.release(file("a"));
+        waitForAsyncTrimming();
+        assertThat(file("b.download")).doesNotExist();
+        assertThat(file("a")).exists();
+    }
+
+    @Test
+    public void testLeasedFilesExceedingLimitDoNotEvictOthers() throws Exception {
+        ManagedDiskUsage diskUsage = new TotalSizeLruDiskUsage(200);
+        long now = System.currentTimeMillis();
+        createFile(file("a"), 150, now - 10000);
+        createFile(file("b"), 100, now - 8000);
+        createFile(file("c"), 50, now - 6000);
+        createFile(file("d"), 60, now - 4000);
+
+        diskUsage.lease(file("a"));
+        diskUsage.lease(file("b"));
+        diskUsage.touch(file("d"));
+        waitForAsyncTrimming();
+
+        assertThat(file("a")).exists();
+        assertThat(file("b")).exists();
+        assertThat(file("c")).exists();
+        assertThat(file("d")).exists();
+
+        createFile(file("e"), 160, now);
+        diskUsage.touch(file("e"));
+        waitForAsyncTrimming();
+
+        assertThat(file("a")).exists();
+        assertThat(file("b")).exists();
+        assertThat(file("c")).doesNotExist();
+        assertThat(file("d")).doesNotExist();
+        assertThat(file("e")).exists();
+    }
+
+    @Test
+    public void testSparseFileIsSizedByCachedBytes() throws Exception {
+        long now = System.currentTimeMillis();
+        createFile(file("a"), 100, now - 10000);
+        createFile(file("b"), 100, now - 8000);
+
+        ManagedDiskUsage diskUsage = new TotalSizeLruDiskUsage(300);
+        FileCache fileCache = new FileCache(file("c"), diskUsage);
+        fileCache.write(ProxyCacheTestUtils.generate(50), 1024 * 1024, 50); // seek near end of source
+        fileCache.close();
+        waitForAsyncTrimming();
+
+        assertThat(file("c.download").length()).isGreaterThan(300);
+        assertThat(file("a")).exists();
+        assertThat(file("b")).exists();
+        assertThat(file("c.download")).exists();
+
+        // index is rebuilt by scanning directory, size of sparse file is read from its index
+        assertThat(file(LruJournal.JOURNAL_FILE).delete()).isTrue();
+        new TotalSizeLruDiskUsage(300).touch(file("b"));
+        waitForAsyncTrimming();
+
+        assertThat(file("a")).exists();
+        assertThat(file("b")).exists();
+        assertThat(file("c.download")).exists();
+    }
+
+    @Test
+    public void testPlainDiskUsageIsManaged() throws Exception {
+        final List<File> touched = new ArrayList<>();
+        DiskUsage plainDiskUsage = new DiskUsage() {
+            @Override
+            public void touch(File file) throws IOException {
+                touched.add(file);
+            }
+        };
+        ManagedDiskUsage diskUsage = DiskUsages.asManaged(plainDiskUsage);
+
+        diskUsage.lease(file("a"));
+        diskUsage.touch(file("a"));
+        diskUsage.release(file("a"));
+
+        assertThat(touched).containsExactly(file("a"));
+        ManagedDiskUsage lruDiskUsage = new TotalCountLruDiskUsage(1);
+        assertThat(DiskUsages.asManaged(lruDiskUsage)).isSameAs(lruDiskUsage);
+    }
+
     private void waitForAsyncTrimming() throws InterruptedException {
         Thread.sleep(200);
     }
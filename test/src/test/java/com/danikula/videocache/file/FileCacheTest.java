@@ -13,8 +13,18 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.danikula.videocache.support.ProxyCacheTestUtils.ASSETS_DATA_NAME;
 import static com.danikula.videocache.support.ProxyCacheTestUtils.generate;
@@ -63,6 +73,28 @@ public class FileCacheTest {
         assertThat(file.length()).isEqualTo(dataSize);
     }
 
+    @Test
+    public void testTransferCompletedCache() throws Exception {
+        byte[] data = generate(34567);
+        FileCache fileCache = new FileCache(newCacheFile());
+        fileCache.append(data, data.length);
+        fileCache.complete();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long transferred = fileCache.transferTo(1000, data.length, Channels.newChannel(out));
+
+        assertThat(transferred).isEqualTo(data.length - 1000);
+        assertThat(out.toByteArray()).isEqualTo(Arrays.copyOfRange(data, 1000, data.length));
+    }
+
+    @Test(expected = ProxyCacheException.class)
+    public void testErrorTransferNotCompletedCache() throws Exception {
+        FileCache fileCache = new FileCache(newCacheFile());
+        fileCache.append(generate(20), 20);
+        fileCache.transferTo(0, 20, Channels.newChannel(new ByteArrayOutputStream()));
+        Assert.fail();
+    }
+
     @Test(expected = ProxyCacheException.class)
     public void testErrorAppendFileCacheAfterCompletion() throws Exception {
         Cache fileCache = new FileCache(newCacheFile());
@@ -90,12 +122,30 @@ public class FileCacheTest {
         fileCache.read(readData, firstPortionLength, secondPortionLength);
         assertThat(readData).isEqualTo(wroteSecondPortion);
 
-        readData = new byte[fileCache.available()];
+        readData = new byte[(int) fileCache.available()];
         fileCache.read(readData, 0, readData.length);
         byte[] fileContent = getFileContent(getTempFile(file));
         assertThat(readData).isEqualTo(fileContent);
     }
 
+    @Test
+    public void testWriteLandedAfterDiscardIsNotCached() throws Exception {
+        File file = newCacheFile();
+        FileCache fileCache = new FileCache(file);
+        fileCache.append(generate(100), 100);
+        fileCache.discard();
+        // write started before discarding reaches file after truncation
+        RandomAccessFile tempFile = new RandomAccessFile(getTempFile(file), "rw");
+        tempFile.write(generate(100));
+        tempFile.close();
+        fileCache.close();
+
+        FileCache reopened = new FileCache(file);
+        assertThat(reopened.available()).isEqualTo(0);
+        assertThat(reopened.cachedLength(0)).isEqualTo(0);
+        reopened.close();
+    }
+
     @Test
     public void testIsFileCacheCompleted() throws Exception {
         File file = newCacheFile();
@@ -145,4 +195,205 @@ public class FileCacheTest {
         fileCache.available();
         Assert.fail();
     }
+
+    @Test
+    public void testSparseWrite() throws Exception {
+        byte[] data = generate(30000);
+        FileCache fileCache = new FileCache(newCacheFile());
+        fileCache.write(Arrays.copyOfRange(data, 20000, 30000), 20000, 10000);
+        fileCache.append(data, 5000);
+
+        assertThat(fileCache.available()).isEqualTo(5000);
+        assertThat(fileCache.cachedLength(0)).isEqualTo(5000);
+        assertThat(fileCache.cachedLength(10000)).isEqualTo(0);
+        assertThat(fileCache.cachedLength(25000)).isEqualTo(5000);
+        assertThat(fileCache.nextCachedOffset(5000)).isEqualTo(20000);
+        assertThat(fileCache.nextCachedOffset(20000)).isEqualTo(-1);
+
+        fileCache.write(Arrays.copyOfRange(data, 5000, 20000), 5000, 15000);
+        assertThat(fileCache.available()).isEqualTo(data.length);
+        byte[] readData = new byte[data.length];
+        fileCache.read(readData, 0, data.length);
+        assertThat(readData).isEqualTo(data);
+    }
+
+    @Test
+    public void testSparseCacheIndexPersistence() throws Exception {
+        byte[] data = generate(30000);
+        File file = newCacheFile();
+        FileCache fileCache = new FileCache(file);
+        fileCache.append(data, 5000);
+        fileCache.write(Arrays.copyOfRange(data, 20000, 30000), 20000, 10000);
+        fileCache.close();
+
+        FileCache reopenedCache = new FileCache(file);
+        assertThat(reopenedCache.available()).isEqualTo(5000);
+        assertThat(reopenedCache.cachedLength(5000)).isEqualTo(0);
+        assertThat(reopenedCache.cachedLength(20000)).isEqualTo(10000);
+
+        reopenedCache.append(Arrays.copyOfRange(data, 5000, 20000), 15000);
+        reopenedCache.complete();
+        assertThat(file.length()).isEqualTo(data.length);
+        assertThat(getFileContent(file)).isEqualTo(data);
+        assertThat(new File(getTempFile(file).getPath() + ".index").exists()).isFalse();
+    }
+
+    @Test
+    public void testTempFileWithoutIndexIsPrefix() throws Exception {
+        byte[] data = generate(4567);
+        File file = newCacheFile();
+        IoUtils.saveToFile(data, getTempFile(file));
+
+        FileCache fileCache = new FileCache(file);
+        assertThat(fileCache.available()).isEqualTo(data.length);
+        assertThat(fileCache.cachedLength(1000)).isEqualTo(data.length - 1000);
+    }
+
+    @Test
+    public void testMappedReadCompletedCache() throws Exception {
+        byte[] data = generate(34567);
+        FileCache fileCache = new FileCache(newCacheFile(), new UnlimitedDiskUsage(), true);
+        fileCache.append(data, data.length);
+        fileCache.complete();
+
+        ByteArrayOutputStream readData = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int readBytes;
+        while ((readBytes = fileCache.read(buffer, readData.size(), buffer.length)) != -1) {
+            readData.write(buffer, 0, readBytes);
+        }
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        fileCache.transferTo(1000, data.length, Channels.newChannel(transferred));
+        fileCache.close();
+
+        assertThat(readData.toByteArray()).isEqualTo(data);
+        assertThat(transferred.toByteArray()).isEqualTo(Arrays.copyOfRange(data, 1000, data.length));
+    }
+
+    @Test
+    public void testMappedFileWindows() throws Exception {
+        byte[] data = generate(5000);
+        File file = newCacheFile();
+        IoUtils.saveToFile(data, file);
+        MappedFile mappedFile = new MappedFile(file, 1000);
+
+        byte[] buffer = new byte[500];
+        assertThat(mappedFile.read(buffer, 800, 500)).isEqualTo(200); // till the end of window
+        assertThat(Arrays.copyOf(buffer, 200)).isEqualTo(Arrays.copyOfRange(data, 800, 1000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(mappedFile.transferTo(500, 4000, Channels.newChannel(out))).isEqualTo(4000);
+        assertThat(out.toByteArray()).isEqualTo(Arrays.copyOfRange(data, 500, 4500));
+        assertThat(mappedFile.read(buffer, data.length, 10)).isEqualTo(-1);
+        mappedFile.release();
+    }
+
+    @Test(expected = IOException.class)
+    public void testErrorReadingReleasedMappedFile() throws Exception {
+        File file = newCacheFile();
+        IoUtils.saveToFile(generate(5000), file);
+        MappedFile mappedFile = new MappedFile(file, 1000);
+        mappedFile.release();
+        mappedFile.read(new byte[10], 0, 10);
+        Assert.fail();
+    }
+
+    @Test
+    public void testMappedFileIsShared() throws Exception {
+        byte[] data = generate(5000);
+        File file = newCacheFile();
+        IoUtils.saveToFile(data, file);
+        MappedFile first = MappedFile.acquire(file);
+        MappedFile second = MappedFile.acquire(file);
+        assertThat(second).isSameAs(first);
+
+        first.release();
+        byte[] buffer = new byte[10];
+        assertThat(second.read(buffer, 0, 10)).isEqualTo(10); // still mapped for second holder
+        second.release();
+
+        MappedFile third = MappedFile.acquire(file);
+        assertThat(third).isNotSameAs(first);
+        third.release();
+    }
+
+    @Test
+    public void testConcurrentReadersWithAppender() throws Exception {
+        final byte[] data = generate(4 * 1024 * 1024);
+        final FileCache fileCache = new FileCache(newCacheFile());
+        fileCache.append(data, 64 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<Boolean>> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            readers.add(executor.submit(new ReadCacheCallable(fileCache, data)));
+        }
+        int appended = 64 * 1024;
+        while (appended < data.length) {
+            int length = Math.min(8192, data.length - appended);
+            fileCache.append(Arrays.copyOfRange(data, appended, appended + length), length);
+            appended += length;
+        }
+        for (Future<Boolean> reader : readers) {
+            assertThat(reader.get()).isTrue();
+        }
+        executor.shutdown();
+        assertThat(fileCache.available()).isEqualTo(data.length);
+    }
+
+    @Ignore("Benchmark: prints read throughput of concurrent readers while cache is appended")
+    @Test
+    public void benchmarkConcurrentReads() throws Exception {
+        byte[] data = generate(64 * 1024 * 1024);
+        for (int readersCount : new int[]{1, 2, 4, 8}) {
+            FileCache fileCache = new FileCache(newCacheFile());
+            fileCache.append(data, data.length / 2);
+            ExecutorService executor = Executors.newFixedThreadPool(readersCount);
+            List<Future<Boolean>> readers = new ArrayList<>();
+            long startTime = System.nanoTime();
+            for (int i = 0; i < readersCount; i++) {
+                readers.add(executor.submit(new ReadCacheCallable(fileCache, data)));
+            }
+            for (int offset = data.length / 2; offset < data.length; offset += 8192) {
+                fileCache.append(Arrays.copyOfRange(data, offset, offset + 8192), 8192);
+            }
+            for (Future<Boolean> reader : readers) {
+                reader.get();
+            }
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.println(String.format("Readers: %d, read %.0f MB/s", readersCount, readersCount * data.length / seconds / 1e6));
+            executor.shutdown();
+            fileCache.close();
+        }
+    }
+
+    // reads whole data following appender and checks every read chunk
+    private static final class ReadCacheCallable implements Callable<Boolean> {
+
+        private final FileCache fileCache;
+        private final byte[] data;
+
+        ReadCacheCallable(FileCache fileCache, byte[] data) {
+            this.fileCache = fileCache;
+            this.data = data;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            byte[] buffer = new byte[8192];
+            int offset = 0;
+            while (offset < data.length) {
+                long available = fileCache.available();
+                if (available <= offset) {
+                    Thread.yield();
+                    continue;
+                }
+                int length = (int) Math.min(buffer.length, available - offset);
+                int read = fileCache.read(buffer, offset, length);
+                if (!Arrays.equals(Arrays.copyOf(buffer, read), Arrays.copyOfRange(data, offset, offset + read))) {
+                    return false;
+                }
+                offset += read;
+            }
+            return true;
+        }
+    }
 }
@@ -22,41 +22,29 @@ import static org.fest.assertions.api.Assertions.assertThat;
 public class FilesTest {
 
     @Test
-    public void testModify() throws Exception {
-        byte[] data = ProxyCacheTestUtils.generate(999);
+    public void testTempFileIsSameCacheEntry() throws Exception {
         File file = ProxyCacheTestUtils.newCacheFile();
-        com.google.common.io.Files.write(data, file);
-        long lastModified = file.lastModified();
+        File tempFile = new File(file.getParentFile(), file.getName() + FileCache.TEMP_POSTFIX);
 
-        Thread.sleep(1100); // file can store modification date in seconds. so wait for ~ 1 sec
-        Files.modify(file);
-
-        assertThat(file).hasBinaryContent(data);
-        assertThat(file.lastModified()).isGreaterThan(lastModified);
+        assertThat(Files.getCacheEntryName(file)).isEqualTo(file.getName());
+        assertThat(Files.getCacheEntryName(tempFile)).isEqualTo(file.getName());
     }
 
     @Test
-    public void testSetModifiedNow() throws Exception {
+    public void testDeleteCacheEntry() throws Exception {
         File file = ProxyCacheTestUtils.newCacheFile();
+        File tempFile = new File(file.getParentFile(), file.getName() + FileCache.TEMP_POSTFIX);
+        File indexFile = Files.getIndexFile(tempFile);
+        Files.makeDir(file.getParentFile());
         com.google.common.io.Files.write(ProxyCacheTestUtils.generate(22), file);
+        com.google.common.io.Files.write(ProxyCacheTestUtils.generate(22), tempFile);
+        com.google.common.io.Files.write(ProxyCacheTestUtils.generate(22), indexFile);
 
-        Thread.sleep(1100); // file can store modification date in seconds. so wait for ~ 1 sec
-        long nowRoundedToSecond = System.currentTimeMillis() / 1000 * 1000;
-        Files.setLastModifiedNow(file);
-
-        assertThat(file.lastModified()).isGreaterThanOrEqualTo(nowRoundedToSecond);
-    }
-
-    @Test
-    public void testModifyZeroSizeFile() throws Exception {
-        File file = ProxyCacheTestUtils.newCacheFile();
-        boolean created = file.createNewFile();
-        assertThat(created).isTrue();
-
-        Thread.sleep(1100); // file can store modification date in seconds. so wait for ~ 2 sec
-        long nowRoundedToSecond = System.currentTimeMillis() / 1000 * 1000;
-        Files.modify(file);
+        boolean deleted = Files.deleteCacheEntry(tempFile);
 
-        assertThat(file.lastModified()).isGreaterThanOrEqualTo(nowRoundedToSecond);
+        assertThat(deleted).isTrue();
+        assertThat(file).doesNotExist();
+        assertThat(tempFile).doesNotExist();
+        assertThat(indexFile).doesNotExist();
     }
 }
@@ -1,5 +1,8 @@
 package com.danikula.videocache.sourcestorage;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
 import com.danikula.videocache.SourceInfo;
 import com.danikula.videocache.test.BuildConfig;
 
@@ -69,6 +72,33 @@ public class SourceInfoStorageTest {
         assertThat(sourceInfo.mime).isEqualTo("video/mp4");
     }
 
+    @Test
+    public void testSavingLengthBiggerThanInt() throws Exception {
+        long length = 5L * 1024 * 1024 * 1024;
+        storage.put(":-)", new SourceInfo(":-)", length, "video/mp4"));
+
+        SourceInfo sourceInfo = storage.get(":-)");
+        assertThat(sourceInfo.length).isEqualTo(length);
+    }
+
+    @Test
+    public void testUpgradeDropsAllRowsOfFirstVersion() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE SourceInfo (_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, url TEXT NOT NULL, " +
+                "mime TEXT, length INTEGER);");
+        db.execSQL("INSERT INTO SourceInfo (url, mime, length) VALUES (':-)', 'video/mp4', 42);");
+        db.execSQL("INSERT INTO SourceInfo (url, mime, length) VALUES (':-(', 'video/mp4', " + (int) (3L * 1024 * 1024 * 1024) + ");");
+        // 5 Gb wrapped to positive 1 Gb
+        db.execSQL("INSERT INTO SourceInfo (url, mime, length) VALUES (':-|', 'video/mp4', " + (int) (5L * 1024 * 1024 * 1024) + ");");
+
+        new DatabaseSourceInfoStorage(RuntimeEnvironment.application).onUpgrade(db, 1, 3);
+
+        Cursor cursor = db.query("SourceInfo", new String[]{"url", "length", "validator"}, null, null, null, null, null);
+        assertThat(cursor.getCount()).isEqualTo(0);
+        cursor.close();
+        db.close();
+    }
+
     @Test(expected = NullPointerException.class)
     public void testNpeForGetting() throws Exception {
         storage.get(null);